@@ -35,6 +35,8 @@
 
     String HTTPHEADER_API_VERSION = "Accept";
 
+    String HTTPHEADER_RETRY_AFTER = "Retry-After";
+
     // Must not contain the '/' at the beginning of the string
     String REMOTE_URL_SEARCH_ENDPOINT = "match";
 
@@ -140,10 +142,17 @@
 
     Integer HTTP_UNSUPPORTED_API_VERSION = 406;
 
+    Integer HTTP_TOO_MANY_REQUESTS = 429;
+
     // Local error codes consumed only internally (TODO: review local error handling)
     Integer ERROR_NOT_SENT = -1;
 
     Integer ERROR_INTERNAL = -2;
 
     Integer ERROR_COMMUNICATION_PROBLEM = -3;
+
+    Integer ERROR_REPLY_TOO_LARGE = -4;
+
+    /** The request was not sent, since the configured request rate for the remote server was exceeded. */
+    Integer ERROR_RATE_LIMITED = -5;
 }
@@ -0,0 +1,69 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.Collection;
+
+import org.json.JSONObject;
+
+/**
+ * Re-sends matching requests to remote servers for all the local patients which have the remote matching consent
+ * granted, as a background job. Requests are dispatched at a limited rate and with a limited number of simultaneous
+ * requests per remote server, and patients which were successfully matched against a server recently are skipped.
+ *
+ * The job is resumable: patients are processed in a stable order, and {@link #stop() stopping} the job remembers the
+ * last patient whose requests all completed, so that the next {@link #start} continues from there. This position is
+ * only kept in memory, so a run can't be resumed after a server restart; a new run then starts from the first patient,
+ * but since recently re-matched patients are skipped, it does not repeat the work already done.
+ *
+ * @version $Id$
+ */
+@Unstable
+@Role
+public interface BulkRematchingService
+{
+    /**
+     * Starts re-matching all consented patients in the background, unless a run is already in progress.
+     *
+     * @param remoteServerIds the servers to send requests to, which must all be configured servers used for finding
+     *            matches
+     * @param skipIfMatchedWithinHours patients successfully matched against a server less than this many hours ago
+     *            are not sent again to that server; use {@code 0} to re-match all patients
+     * @param restart if {@code true}, start from the first patient instead of resuming a previously stopped run
+     * @return {@code true} if a new run was started, {@code false} if a run is already in progress or the servers are
+     *         not valid
+     */
+    boolean start(Collection<String> remoteServerIds, int skipIfMatchedWithinHours, boolean restart);
+
+    /**
+     * Asks the current run to stop after the requests already dispatched complete. The position is kept, so that a
+     * future call to {@link #start} can resume from where the run stopped.
+     */
+    void stop();
+
+    /**
+     * @return a JSON with the progress of the current (or last) run: its state ({@code failed} if the last run ended
+     *         because of an error, in which case the next run resumes from the last processed patient), number of
+     *         processed and skipped patients, number of sent and failed requests, number of matches found and the last
+     *         processed patient
+     */
+    JSONObject getStatus();
+}
@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import org.apache.http.impl.client.CloseableHttpClient;
+
+/**
+ * Provides long-lived, pooled HTTP clients used for sending matching requests to remote MME servers. One client (and
+ * one connection pool) is kept per remote server, so that consecutive requests to the same server can reuse already
+ * established (and TLS-negotiated) keep-alive connections.
+ *
+ * Clients returned by this manager are shared and must not be closed by the callers; however every response obtained
+ * from them must be fully consumed and closed, otherwise the underlying connection is not returned to the pool.
+ *
+ * @version $Id$
+ */
+@Unstable
+@Role
+public interface RemoteHttpClientManager
+{
+    /**
+     * Returns the pooled client for the given remote server, creating it if needed. If the client exists but was
+     * created with a different connection limit it is replaced by a new one, and closed once the requests still using
+     * it are done.
+     *
+     * @param remoteServerId the id of the remote server, as configured in the remote matching admin section
+     * @param maxConnections the maximum number of simultaneous connections to the server; non-positive values mean
+     *            "use the default limit"
+     * @return a shared HTTP client, never {@code null}
+     */
+    CloseableHttpClient getClient(String remoteServerId, int maxConnections);
+
+    /**
+     * Same as {@link #getClient(String, int)}, but also marks the client as being used until
+     * {@link #releaseClient(String, CloseableHttpClient)} is called. A client which is replaced or closed in the
+     * meantime is never closed while it is marked as used, even before the request actually takes a connection from
+     * its pool.
+     *
+     * @param remoteServerId the id of the remote server, as configured in the remote matching admin section
+     * @param maxConnections the maximum number of simultaneous connections to the server; non-positive values mean
+     *            "use the default limit"
+     * @return a shared HTTP client, never {@code null}
+     */
+    CloseableHttpClient acquireClient(String remoteServerId, int maxConnections);
+
+    /**
+     * Marks a client obtained with {@link #acquireClient(String, int)} as no longer used by the caller. Must be called
+     * exactly once for each acquired client, once the response was closed.
+     *
+     * @param remoteServerId the id of the remote server the client was acquired for
+     * @param client the acquired client
+     */
+    void releaseClient(String remoteServerId, CloseableHttpClient client);
+
+    /**
+     * Closes the client used for the given remote server (if any) together with all its pooled connections, e.g.
+     * because the server was removed from the configuration. The client is closed once the requests still using it
+     * are done.
+     *
+     * @param remoteServerId the id of the remote server
+     */
+    void closeClient(String remoteServerId);
+}
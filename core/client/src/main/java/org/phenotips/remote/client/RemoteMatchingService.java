@@ -20,10 +20,13 @@
 import org.phenotips.matchingnotification.match.PatientMatch;
 import org.phenotips.remote.api.OutgoingMatchRequest;
 import org.phenotips.remote.common.internal.RemotePatientSimilarityView;
+import org.phenotips.remote.hibernate.LastOutgoingRequests;
 import org.xwiki.component.annotation.Role;
 import org.xwiki.stability.Unstable;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Sends requests to remote servers supporting the specifications.
@@ -37,9 +40,82 @@
     OutgoingMatchRequest sendRequest(String patientId, String remoteServerId, int addTopNGenes,
         List<PatientMatch> matchesList);
 
+    /**
+     * Same as {@link #sendRequest(String, String, int, List)}, but the request is not stored: if it was actually sent,
+     * it is added to {@code unsavedRequests} instead, so that the caller can store many requests at once using
+     * {@link org.phenotips.remote.hibernate.RemoteMatchingStorageManager#saveOutgoingRequests(Collection)}.
+     *
+     * @param patientId the local patient to find matches for
+     * @param remoteServerId the server to send the request to
+     * @param addTopNGenes the number of top exomiser genes to include in the request
+     * @param matchesList the list where the matches found on the server are added
+     * @param unsavedRequests the collection where the sent request is added instead of being stored
+     * @return the request sent to the server, or an error request if it could not be sent
+     */
+    OutgoingMatchRequest sendRequest(String patientId, String remoteServerId, int addTopNGenes,
+        List<PatientMatch> matchesList, Collection<OutgoingMatchRequest> unsavedRequests);
+
+    /**
+     * Sends the same match request for the given patient to all the given servers in parallel. The request JSON is
+     * generated only once, and every server is contacted on a separate worker thread, so the total time is bounded by
+     * the slowest server instead of being the sum of all response times.
+     *
+     * Each server is waited for at most as long as its own total timeout, plus the time needed to process its reply.
+     * A request which is still running when its server is given up on is not interrupted: it completes in the
+     * background, and its request and matches are stored as usual, but they are missing from the returned values.
+     *
+     * @param patientId the local patient to find matches for
+     * @param remoteServerIds the servers to send the request to, e.g. all servers enabled for searching matches
+     * @param addTopNGenes the number of top exomiser genes to include in the request
+     * @param matchesList the list where all the matches found on all the servers are added
+     * @return the request sent to each server, in the iteration order of {@code remoteServerIds}; servers which did
+     *         not reply in time get an error request with the {@code ERROR_COMMUNICATION_PROBLEM} status, and servers
+     *         which could not be contacted because too many requests are already waiting get an error request with
+     *         the {@code ERROR_NOT_SENT} status
+     */
+    Map<String, OutgoingMatchRequest> sendRequests(String patientId, Collection<String> remoteServerIds,
+        int addTopNGenes, List<PatientMatch> matchesList);
+
+    /**
+     * Same as {@link #sendRequests(String, Collection, int, List)}, but the requests are not stored: the requests which
+     * were actually sent are added to {@code unsavedRequests} instead, so that the caller can store many requests at
+     * once. The requests of the servers which did not reply in time are still stored by the background task which
+     * sends them, since the caller is no longer waiting for them.
+     *
+     * @param patientId the local patient to find matches for
+     * @param remoteServerIds the servers to send the request to
+     * @param addTopNGenes the number of top exomiser genes to include in the request
+     * @param matchesList the list where all the matches found on all the servers are added
+     * @param unsavedRequests the collection where the sent requests are added instead of being stored
+     * @return the request sent to each server, see {@link #sendRequests(String, Collection, int, List)}
+     */
+    Map<String, OutgoingMatchRequest> sendRequests(String patientId, Collection<String> remoteServerIds,
+        int addTopNGenes, List<PatientMatch> matchesList, Collection<OutgoingMatchRequest> unsavedRequests);
+
     OutgoingMatchRequest getLastOutgoingRequest(String remoteServerId, String patientId);
 
     OutgoingMatchRequest getLastSuccessfulOutgoingRequest(String remoteServerId, String patientId);
 
+    /**
+     * Returns both the last and the last successful request sent to the given server for the given patient, in one
+     * database round trip.
+     *
+     * @param remoteServerId the remote server
+     * @param patientId the local patient
+     * @return the last requests, never {@code null}
+     */
+    LastOutgoingRequests getLastOutgoingRequests(String remoteServerId, String patientId);
+
+    /**
+     * Returns the last and the last successful requests sent to the given servers for many patients at once.
+     *
+     * @param remoteServerIds the remote servers
+     * @param patientIds the local patients
+     * @return the last requests, indexed by the local patient identifier and then by the remote server identifier;
+     *         patients and servers without any requests are missing from the result
+     */
+    Map<String, Map<String, LastOutgoingRequests>> getLastOutgoingRequests(Collection<String> remoteServerIds,
+        Collection<String> patientIds);
+
     List<RemotePatientSimilarityView> getSimilarityResults(OutgoingMatchRequest request);
 }
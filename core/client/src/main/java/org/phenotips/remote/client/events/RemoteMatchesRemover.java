@@ -20,6 +20,7 @@
 import org.phenotips.data.events.PatientDeletingEvent;
 import org.phenotips.remote.hibernate.RemoteMatchingStorageManager;
 
+import org.xwiki.bridge.event.ApplicationReadyEvent;
 import org.xwiki.component.annotation.Component;
 import org.xwiki.observation.AbstractEventListener;
 import org.xwiki.observation.event.Event;
@@ -31,7 +32,8 @@
 import com.xpn.xwiki.doc.XWikiDocument;
 
 /**
- * Removes local matches from database for the patient that was deleted.
+ * Removes the stored requests referencing the patient that was deleted. The requests are removed in the background, so
+ * that deleting patients is not delayed; removals not completed before a shutdown are resumed on startup.
  *
  * @version $Id$
  */
@@ -46,15 +48,19 @@ public class RemoteMatchesRemover extends AbstractEventListener
     /** Default constructor, sets up the listener name and the list of events to subscribe to. */
     public RemoteMatchesRemover()
     {
-        super("remote-matches-remover", new PatientDeletingEvent());
+        super("remote-matches-remover", new PatientDeletingEvent(), new ApplicationReadyEvent());
     }
 
     @Override
     public void onEvent(Event event, Object source, Object data)
     {
+        if (event instanceof ApplicationReadyEvent) {
+            this.requestStorageManager.resumePendingDeletions();
+            return;
+        }
         XWikiDocument doc = (XWikiDocument) source;
         String patientId = doc.getDocumentReference().getName();
 
-        this.requestStorageManager.deleteMatchesForLocalPatient(patientId);
+        this.requestStorageManager.scheduleDeletionForLocalPatient(patientId);
     }
 }
\ No newline at end of file
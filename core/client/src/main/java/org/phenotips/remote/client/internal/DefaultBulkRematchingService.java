@@ -0,0 +1,615 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import org.phenotips.consents.ConsentManager;
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.matchingnotification.match.PatientMatch;
+import org.phenotips.remote.api.OutgoingMatchRequest;
+import org.phenotips.remote.client.BulkRematchingService;
+import org.phenotips.remote.client.RemoteMatchingService;
+import org.phenotips.remote.common.ExecutionContextPropagator;
+import org.phenotips.remote.common.RemoteServerConfig;
+import org.phenotips.remote.common.RemoteServerRegistry;
+import org.phenotips.remote.hibernate.RemoteMatchingStorageManager;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.json.JSONObject;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Default implementation of {@link BulkRematchingService}. A single coordinator thread walks the consented patients
+ * in document name order and dispatches them to a worker pool, where each task sends a patient to several servers in
+ * parallel, using {@link RemoteMatchingService#sendRequests}. Both the dispatch rate and the number of in-flight
+ * requests are limited separately for every server; the coordinator never waits for one server, but sends each
+ * patient to the servers which are ready, and comes back to the other ones later. A patient counts as processed, and
+ * becomes the position a stopped run resumes from, only once all its requests completed. The position is only kept
+ * in memory, so a run can't be resumed after a restart.
+ *
+ * The sent requests are not stored one by one, but collected and stored in batches of {@value #SAVE_BATCH_SIZE}, so
+ * that re-matching a large cohort does not cost one database transaction per request.
+ *
+ * The per server rate and concurrency limits can be configured in {@code xwiki.properties}, using the
+ * {@value #REQUESTS_PER_MINUTE_PROPERTY} and {@value #MAX_REQUESTS_PER_SERVER_PROPERTY} properties; the rate never
+ * exceeds the request rate limit configured for the server itself.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultBulkRematchingService implements BulkRematchingService, Initializable, Disposable
+{
+    private static final String REQUESTS_PER_MINUTE_PROPERTY = "remoteMatching.bulk.requestsPerMinutePerServer";
+
+    private static final int DEFAULT_REQUESTS_PER_MINUTE = 120;
+
+    private static final String MAX_REQUESTS_PER_SERVER_PROPERTY = "remoteMatching.bulk.maxConcurrentRequestsPerServer";
+
+    private static final int DEFAULT_MAX_REQUESTS_PER_SERVER = 4;
+
+    private static final int WORKER_THREADS = 16;
+
+    private static final int PATIENTS_PAGE_SIZE = 100;
+
+    /** Maximum number of read patients still waiting for some of their servers. */
+    private static final int DISPATCH_WINDOW_SIZE = 1000;
+
+    private static final long DISPATCH_POLL_INTERVAL_MS = 100;
+
+    private static final int ADD_TOP_N_GENES_PARAMETER = 0;
+
+    private static final int SAVE_BATCH_SIZE = 50;
+
+    private static final String REMOTE_MATCHING_CONSENT_ID = "matching";
+
+    /** Same filter as the one used for MME metrics, minus the visibility: all patients with the matching consent. */
+    private static final String CONSENTED_PATIENTS_QUERY = "select distinct doc.name"
+        + " from XWikiDocument as doc, BaseObject as patientObj,"
+        + " BaseObject consentObj, DBStringListProperty consentProp"
+        + " where patientObj.name = doc.fullName and patientObj.className = 'PhenoTips.PatientClass'"
+        + " and doc.fullName <> 'PhenoTips.PatientTemplate'"
+        + " and consentObj.name = doc.fullName and consentObj.className = 'PhenoTips.PatientConsent'"
+        + " and consentProp.id.id = consentObj.id and consentProp.id.name = 'granted'"
+        + " and '" + REMOTE_MATCHING_CONSENT_ID + "' in elements(consentProp.list)"
+        + " and doc.name > :lastPatientId"
+        + " order by doc.name";
+
+    private static final long MS_IN_ONE_HOUR = 3600000L;
+
+    private static final long MS_IN_ONE_MINUTE = 60000L;
+
+    private enum State
+    {
+        IDLE, RUNNING, STOPPING, FAILED
+    }
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    @Inject
+    private PatientRepository patientRepository;
+
+    @Inject
+    private ConsentManager consentManager;
+
+    @Inject
+    private RemoteMatchingService matchingService;
+
+    @Inject
+    private RemoteMatchingStorageManager requestStorageManager;
+
+    @Inject
+    private ExecutionContextPropagator contextPropagator;
+
+    @Inject
+    private RemoteServerRegistry remoteServerRegistry;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private ExecutorService coordinator;
+
+    private ThreadPoolExecutor workers;
+
+    private volatile State state = State.IDLE;
+
+    /**
+     * The name of the last patient such that all the requests of this and of all previous patients completed; the empty
+     * string means "start from the beginning". Not persisted, so it is lost when the server restarts.
+     */
+    private volatile String lastPatientId = "";
+
+    /** Read patients with the number of their requests not completed yet, in reading order; guarded by itself. */
+    private final Map<String, Integer> pendingPatients = new LinkedHashMap<>();
+
+    private volatile Date startTime;
+
+    private volatile Date endTime;
+
+    private final AtomicInteger processedPatients = new AtomicInteger();
+
+    private final AtomicInteger skippedPatients = new AtomicInteger();
+
+    private final AtomicInteger sentRequests = new AtomicInteger();
+
+    private final AtomicInteger failedRequests = new AtomicInteger();
+
+    private final AtomicInteger foundMatches = new AtomicInteger();
+
+    /** Requests sent by the workers which were not stored yet; guarded by itself. */
+    private final List<OutgoingMatchRequest> unsavedRequests = new ArrayList<>(SAVE_BATCH_SIZE);
+
+    @Override
+    public void initialize()
+    {
+        this.coordinator = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-bulk-coordinator-%d").daemon(true).build());
+        this.workers = new ThreadPoolExecutor(WORKER_THREADS, WORKER_THREADS, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-bulk-worker-%d").daemon(true).build());
+        this.workers.allowCoreThreadTimeOut(true);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.state = State.STOPPING;
+        this.coordinator.shutdownNow();
+        this.workers.shutdownNow();
+        this.saveRequests(true);
+    }
+
+    @Override
+    public synchronized boolean start(Collection<String> remoteServerIds, int skipIfMatchedWithinHours,
+        boolean restart)
+    {
+        if (this.state == State.RUNNING || this.state == State.STOPPING) {
+            this.logger.warn("Bulk re-matching is already in progress, ignoring the new start request");
+            return false;
+        }
+        final List<RemoteServerConfig> servers = this.getServers(remoteServerIds);
+        if (servers == null) {
+            return false;
+        }
+        if (restart) {
+            this.lastPatientId = "";
+        }
+        synchronized (this.pendingPatients) {
+            this.pendingPatients.clear();
+        }
+        this.processedPatients.set(0);
+        this.skippedPatients.set(0);
+        this.sentRequests.set(0);
+        this.failedRequests.set(0);
+        this.foundMatches.set(0);
+        this.startTime = new Date();
+        this.endTime = null;
+        this.state = State.RUNNING;
+
+        final long skipWindow = Math.max(0, skipIfMatchedWithinHours) * MS_IN_ONE_HOUR;
+        this.logger.warn("Starting bulk re-matching against servers {}, resuming after patient [{}]",
+            remoteServerIds, this.lastPatientId);
+        this.coordinator.execute(this.contextPropagator.wrap(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                runBulkRematching(servers, skipWindow);
+            }
+        }));
+        return true;
+    }
+
+    /**
+     * @return the configurations of the requested servers, or {@code null} if one of them is not a configured server
+     *         used for finding matches
+     */
+    private List<RemoteServerConfig> getServers(Collection<String> remoteServerIds)
+    {
+        if (remoteServerIds == null || remoteServerIds.isEmpty()) {
+            this.logger.warn("No servers to re-match against, ignoring the start request");
+            return null;
+        }
+        List<RemoteServerConfig> servers = new ArrayList<>(remoteServerIds.size());
+        for (String serverId : remoteServerIds) {
+            RemoteServerConfig server = this.remoteServerRegistry.getServer(serverId);
+            if (server == null || !server.isSearchMatches()) {
+                this.logger.warn("[{}] is not a configured server used for finding matches, ignoring the start request",
+                    serverId);
+                return null;
+            }
+            if (!servers.contains(server)) {
+                servers.add(server);
+            }
+        }
+        return servers;
+    }
+
+    @Override
+    public synchronized void stop()
+    {
+        if (this.state == State.RUNNING) {
+            this.logger.warn("Stopping bulk re-matching after patient [{}]", this.lastPatientId);
+            this.state = State.STOPPING;
+        }
+    }
+
+    @Override
+    public JSONObject getStatus()
+    {
+        JSONObject status = new JSONObject();
+        status.put("state", this.state.name().toLowerCase());
+        status.put("startTime", this.startTime == null ? JSONObject.NULL : this.startTime);
+        status.put("endTime", this.endTime == null ? JSONObject.NULL : this.endTime);
+        status.put("lastPatientId", this.lastPatientId);
+        status.put("processedPatients", this.processedPatients.get());
+        status.put("skippedPatients", this.skippedPatients.get());
+        status.put("sentRequests", this.sentRequests.get());
+        status.put("failedRequests", this.failedRequests.get());
+        status.put("requestsInProgress", this.workers.getActiveCount());
+        status.put("foundMatches", this.foundMatches.get());
+        return status;
+    }
+
+    private void runBulkRematching(List<RemoteServerConfig> servers, long skipWindow)
+    {
+        int requestsPerMinute = Math.max(1,
+            this.configuration.getProperty(REQUESTS_PER_MINUTE_PROPERTY, DEFAULT_REQUESTS_PER_MINUTE));
+        int maxRequestsPerServer = Math.max(1,
+            this.configuration.getProperty(MAX_REQUESTS_PER_SERVER_PROPERTY, DEFAULT_MAX_REQUESTS_PER_SERVER));
+
+        List<ServerDispatcher> dispatchers = new ArrayList<>(servers.size());
+        for (RemoteServerConfig server : servers) {
+            int serverRate = (server.getMaxRequestsPerMinute() > 0)
+                ? Math.min(requestsPerMinute, server.getMaxRequestsPerMinute()) : requestsPerMinute;
+            dispatchers.add(new ServerDispatcher(server.getServerId(), maxRequestsPerServer, serverRate));
+        }
+
+        boolean failed = false;
+        try {
+            // the read position, which is ahead of the completed position while patients wait or are in flight
+            String cursor = this.lastPatientId;
+            boolean cohortExhausted = false;
+            // read patients with the servers they still have to be sent to, in reading order
+            Map<String, List<ServerDispatcher>> waitingPatients = new LinkedHashMap<>();
+            while (this.state == State.RUNNING && !(cohortExhausted && waitingPatients.isEmpty())) {
+                if (!cohortExhausted && waitingPatients.size() < DISPATCH_WINDOW_SIZE) {
+                    List<String> page = this.getNextPatients(cursor);
+                    cohortExhausted = page.isEmpty();
+                    for (String patientId : page) {
+                        List<ServerDispatcher> targets = this.getTargets(patientId, dispatchers, skipWindow);
+                        (targets.isEmpty() ? this.skippedPatients : this.processedPatients).incrementAndGet();
+                        this.patientRead(patientId, targets.size());
+                        if (!targets.isEmpty()) {
+                            waitingPatients.put(patientId, targets);
+                        }
+                        cursor = patientId;
+                    }
+                }
+                if (!this.dispatchReadyServers(waitingPatients)) {
+                    Thread.sleep(this.getDispatchDelay(dispatchers));
+                }
+            }
+
+            // wait for the requests which are still in flight
+            for (ServerDispatcher dispatcher : dispatchers) {
+                dispatcher.slots.acquire(maxRequestsPerServer);
+            }
+
+            if (this.state == State.RUNNING) {
+                // the whole cohort was processed: the next run should start from the beginning
+                this.lastPatientId = "";
+            }
+            this.logger.warn("Bulk re-matching {}: {}", (this.state == State.RUNNING) ? "finished" : "stopped",
+                this.getStatus());
+        } catch (InterruptedException ex) {
+            this.logger.warn("Bulk re-matching interrupted after patient [{}]", this.lastPatientId);
+            Thread.currentThread().interrupt();
+        } catch (Exception ex) {
+            // the position is kept, so that the next run resumes from where this one failed
+            failed = true;
+            this.logger.error("Bulk re-matching failed after patient [{}]: {}", this.lastPatientId, ex.getMessage(),
+                ex);
+        } finally {
+            this.saveRequests(true);
+            this.endTime = new Date();
+            this.state = failed ? State.FAILED : State.IDLE;
+        }
+    }
+
+    /**
+     * @return the servers that the patient must be sent to, empty if it has no consent or was matched recently on all
+     *         servers
+     */
+    private List<ServerDispatcher> getTargets(String patientId, List<ServerDispatcher> dispatchers, long skipWindow)
+    {
+        List<ServerDispatcher> targets = new ArrayList<>(dispatchers.size());
+        Patient patient = this.patientRepository.get(patientId);
+        if (patient != null && this.consentManager.hasConsent(patient, REMOTE_MATCHING_CONSENT_ID)) {
+            for (ServerDispatcher dispatcher : dispatchers) {
+                if (!this.wasRecentlyMatched(patientId, dispatcher.serverId, skipWindow)) {
+                    targets.add(dispatcher);
+                }
+            }
+        }
+        return targets;
+    }
+
+    /**
+     * Sends each waiting patient to those of its servers which can take a request right now, all at once. Servers
+     * which are not ready are skipped and the patient is kept for them, so that a slow server only holds back its own
+     * patients, and the others keep going until it falls {@value #DISPATCH_WINDOW_SIZE} patients behind them.
+     *
+     * @param waitingPatients the read patients with the servers they still have to be sent to
+     * @return {@code true} if at least one request was dispatched
+     */
+    private boolean dispatchReadyServers(Map<String, List<ServerDispatcher>> waitingPatients)
+    {
+        boolean dispatched = false;
+        long now = System.currentTimeMillis();
+        Iterator<Map.Entry<String, List<ServerDispatcher>>> patients = waitingPatients.entrySet().iterator();
+        while (patients.hasNext() && this.state == State.RUNNING) {
+            Map.Entry<String, List<ServerDispatcher>> patient = patients.next();
+            List<ServerDispatcher> ready = new ArrayList<>(patient.getValue().size());
+            Iterator<ServerDispatcher> servers = patient.getValue().iterator();
+            while (servers.hasNext()) {
+                ServerDispatcher server = servers.next();
+                if (server.tryTakeTurn(now)) {
+                    ready.add(server);
+                    servers.remove();
+                }
+            }
+            if (!ready.isEmpty()) {
+                this.workers.execute(this.contextPropagator.wrap(new RematchTask(patient.getKey(), ready)));
+                dispatched = true;
+            }
+            if (patient.getValue().isEmpty()) {
+                patients.remove();
+            }
+        }
+        return dispatched;
+    }
+
+    /**
+     * @return how long to wait before trying to dispatch again, at most {@value #DISPATCH_POLL_INTERVAL_MS} ms, since
+     *         servers waiting for an in-flight slot are not waited for precisely
+     */
+    private long getDispatchDelay(List<ServerDispatcher> dispatchers)
+    {
+        long delay = DISPATCH_POLL_INTERVAL_MS;
+        long now = System.currentTimeMillis();
+        for (ServerDispatcher dispatcher : dispatchers) {
+            long wait = dispatcher.nextDispatchTime - now;
+            if (wait > 0) {
+                delay = Math.min(delay, wait);
+            }
+        }
+        return delay;
+    }
+
+    /**
+     * Stores the requests sent so far, if there are enough of them for a batch.
+     *
+     * @param force whether to store the pending requests even if they don't fill a batch
+     */
+    private void saveRequests(boolean force)
+    {
+        List<OutgoingMatchRequest> batch;
+        synchronized (this.unsavedRequests) {
+            if (this.unsavedRequests.isEmpty() || !force && this.unsavedRequests.size() < SAVE_BATCH_SIZE) {
+                return;
+            }
+            batch = new ArrayList<>(this.unsavedRequests);
+            this.unsavedRequests.clear();
+        }
+        try {
+            this.requestStorageManager.saveOutgoingRequests(batch);
+        } catch (Exception ex) {
+            this.logger.error("Failed to store [{}] re-matching requests: {}", batch.size(), ex.getMessage(), ex);
+        }
+    }
+
+    /**
+     * Records that a patient was read, with the number of requests to send for it; a patient without requests is done
+     * right away.
+     */
+    private void patientRead(String patientId, int requests)
+    {
+        synchronized (this.pendingPatients) {
+            this.pendingPatients.put(patientId, requests);
+            this.advanceLastPatient();
+        }
+    }
+
+    private void requestsCompleted(String patientId, int requests)
+    {
+        synchronized (this.pendingPatients) {
+            Integer remaining = this.pendingPatients.get(patientId);
+            if (remaining != null) {
+                this.pendingPatients.put(patientId, remaining - requests);
+                this.advanceLastPatient();
+            }
+        }
+    }
+
+    /** Moves the resume position past the leading patients whose requests all completed. */
+    private void advanceLastPatient()
+    {
+        Iterator<Map.Entry<String, Integer>> patients = this.pendingPatients.entrySet().iterator();
+        while (patients.hasNext()) {
+            Map.Entry<String, Integer> patient = patients.next();
+            if (patient.getValue() > 0) {
+                break;
+            }
+            this.lastPatientId = patient.getKey();
+            patients.remove();
+        }
+    }
+
+    private boolean wasRecentlyMatched(String patientId, String serverId, long skipWindow)
+    {
+        if (skipWindow <= 0) {
+            return false;
+        }
+        OutgoingMatchRequest lastRequest = this.matchingService.getLastSuccessfulOutgoingRequest(serverId, patientId);
+        return lastRequest != null && lastRequest.getRequestTime() != null
+            && System.currentTimeMillis() - lastRequest.getRequestTime().getTime() < skipWindow;
+    }
+
+    /**
+     * @throws HibernateException if the patients can't be listed, which must stop the run instead of being mistaken
+     *             for the end of the cohort
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> getNextPatients(String lastProcessedPatientId)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Query query = session.createQuery(CONSENTED_PATIENTS_QUERY);
+            query.setParameter("lastPatientId", lastProcessedPatientId);
+            query.setMaxResults(PATIENTS_PAGE_SIZE);
+            return query.list();
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Sends one patient to several servers in parallel, and records the outcome.
+     */
+    private final class RematchTask implements Runnable
+    {
+        private final String patientId;
+
+        private final List<ServerDispatcher> servers;
+
+        RematchTask(String patientId, List<ServerDispatcher> servers)
+        {
+            this.patientId = patientId;
+            this.servers = servers;
+        }
+
+        @Override
+        public void run()
+        {
+            List<String> serverIds = new ArrayList<>(this.servers.size());
+            for (ServerDispatcher server : this.servers) {
+                serverIds.add(server.serverId);
+            }
+            try {
+                List<PatientMatch> matches = new LinkedList<>();
+                List<OutgoingMatchRequest> sent = new LinkedList<>();
+                Map<String, OutgoingMatchRequest> requests = DefaultBulkRematchingService.this.matchingService
+                    .sendRequests(this.patientId, serverIds, ADD_TOP_N_GENES_PARAMETER, matches, sent);
+                synchronized (DefaultBulkRematchingService.this.unsavedRequests) {
+                    DefaultBulkRematchingService.this.unsavedRequests.addAll(sent);
+                }
+                saveRequests(false);
+                for (OutgoingMatchRequest request : requests.values()) {
+                    if (request != null && request.wasSent() && request.gotValidReply()) {
+                        DefaultBulkRematchingService.this.sentRequests.incrementAndGet();
+                    } else {
+                        DefaultBulkRematchingService.this.failedRequests.incrementAndGet();
+                    }
+                }
+                DefaultBulkRematchingService.this.foundMatches.addAndGet(matches.size());
+            } catch (Exception ex) {
+                DefaultBulkRematchingService.this.failedRequests.addAndGet(serverIds.size());
+                DefaultBulkRematchingService.this.logger.error("Failed to re-match patient [{}] on servers {}: {}",
+                    this.patientId, serverIds, ex.getMessage(), ex);
+            } finally {
+                for (ServerDispatcher server : this.servers) {
+                    server.slots.release();
+                }
+                requestsCompleted(this.patientId, this.servers.size());
+            }
+        }
+    }
+
+    /**
+     * Paces the requests sent to one server, and limits how many of them are in flight.
+     */
+    private static final class ServerDispatcher
+    {
+        private final String serverId;
+
+        private final Semaphore slots;
+
+        private final long dispatchInterval;
+
+        /** Only used by the coordinator thread. */
+        private long nextDispatchTime = System.currentTimeMillis();
+
+        ServerDispatcher(String serverId, int maxRequests, int requestsPerMinute)
+        {
+            this.serverId = serverId;
+            this.slots = new Semaphore(maxRequests);
+            this.dispatchInterval = MS_IN_ONE_MINUTE / requestsPerMinute;
+        }
+
+        /**
+         * Takes one of the server's in-flight slots if a request can be sent to the server right now, without waiting.
+         *
+         * @param now the current time
+         * @return {@code true} if a request can be sent, {@code false} if the server is not ready yet
+         */
+        boolean tryTakeTurn(long now)
+        {
+            if (now < this.nextDispatchTime || !this.slots.tryAcquire()) {
+                return false;
+            }
+            this.nextDispatchTime = now + this.dispatchInterval;
+            return true;
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.PatientRepository;
+import org.phenotips.remote.common.internal.ExpiringCache;
+import org.phenotips.remote.common.internal.api.DefaultJSONToMatchingPatientConverter;
+
+import org.xwiki.component.annotation.Component;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+/**
+ * Default {@link ReferencePatientCache}: entries are kept for a few minutes, which covers sending one patient to all
+ * servers and scoring the replies, and are removed as soon as the patient changes.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultReferencePatientCache implements ReferencePatientCache
+{
+    private static final int MAX_PATIENTS = 100;
+
+    private static final long TIME_TO_LIVE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    @Inject
+    private PatientRepository patientRepository;
+
+    private final ExpiringCache<String, ReferencePatient> cache = new ExpiringCache<>(MAX_PATIENTS, TIME_TO_LIVE_MS);
+
+    @Override
+    public ReferencePatient get(String patientId)
+    {
+        if (patientId == null) {
+            return null;
+        }
+        ReferencePatient result = this.cache.get(patientId);
+        if (result == null) {
+            // concurrent misses for the same patient may both load it, which is harmless
+            Patient patient = this.patientRepository.get(patientId);
+            if (patient == null) {
+                return null;
+            }
+            result = new ReferencePatient(patient, new SimilarityPreFilter(patient,
+                DefaultJSONToMatchingPatientConverter.getHpoTermResolver()));
+            this.cache.put(patientId, result);
+        }
+        return result;
+    }
+
+    @Override
+    public void invalidate(String patientId)
+    {
+        this.cache.invalidate(patientId);
+    }
+}
@@ -0,0 +1,315 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import org.phenotips.remote.client.RemoteHttpClientManager;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.http.HttpResponse;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.protocol.HttpContext;
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of {@link RemoteHttpClientManager}, keeping one {@link PoolingHttpClientConnectionManager
+ * pooled} client per remote server for the lifetime of the component. Clients which are replaced or no longer needed
+ * are retired instead of being closed right away, and only closed once no caller holds them (see
+ * {@link #acquireClient(String, int)}) and all their connections have been released, so that the requests still using
+ * them are not broken.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultRemoteHttpClientManager implements RemoteHttpClientManager, Initializable, Disposable
+{
+    /** Number of simultaneous connections to one remote server used when nothing is configured. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 10;
+
+    /** Keep-alive used when the remote server does not specify one; also an upper limit for server values. */
+    private static final long DEFAULT_KEEP_ALIVE_MS = 30000;
+
+    /** Pooled connections idle for longer than this are closed by the background evictor. */
+    private static final long MAX_IDLE_TIME_MS = 60000;
+
+    /** Pooled connections idle for longer than this are re-validated before being reused. */
+    private static final int VALIDATE_AFTER_INACTIVITY_MS = 2000;
+
+    /** How often the retired clients are checked for connections still in use. */
+    private static final long RETIREMENT_CHECK_SECONDS = 5;
+
+    /** Retired clients are closed after this long even if some connections were never released. */
+    private static final long MAX_RETIREMENT_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static final ConnectionKeepAliveStrategy KEEP_ALIVE_STRATEGY = new ConnectionKeepAliveStrategy()
+    {
+        @Override
+        public long getKeepAliveDuration(HttpResponse response, HttpContext context)
+        {
+            long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return (duration > 0) ? Math.min(duration, DEFAULT_KEEP_ALIVE_MS) : DEFAULT_KEEP_ALIVE_MS;
+        }
+    };
+
+    @Inject
+    private Logger logger;
+
+    private final ConcurrentMap<String, PooledClient> clients = new ConcurrentHashMap<>();
+
+    private final Queue<PooledClient> retiredClients = new ConcurrentLinkedQueue<>();
+
+    /** Closes the retired clients once they are no longer used. */
+    private ScheduledExecutorService retirementChecker;
+
+    @Override
+    public void initialize()
+    {
+        this.retirementChecker = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-http-client-retirement-%d").daemon(true)
+                .build());
+        this.retirementChecker.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                closeUnusedRetiredClients();
+            }
+        }, RETIREMENT_CHECK_SECONDS, RETIREMENT_CHECK_SECONDS, TimeUnit.SECONDS);
+    }
+
+    @Override
+    public CloseableHttpClient getClient(String remoteServerId, int maxConnections)
+    {
+        return this.getPooledClient(remoteServerId, maxConnections).client;
+    }
+
+    @Override
+    public CloseableHttpClient acquireClient(String remoteServerId, int maxConnections)
+    {
+        while (true) {
+            PooledClient pooledClient = this.getPooledClient(remoteServerId, maxConnections);
+            if (pooledClient.acquire()) {
+                return pooledClient.client;
+            }
+            // the client was replaced and closed right after it was looked up, so its replacement is used instead
+        }
+    }
+
+    @Override
+    public void releaseClient(String remoteServerId, CloseableHttpClient client)
+    {
+        PooledClient current = this.clients.get(remoteServerId);
+        if (current != null && current.client == client) {
+            current.release();
+            return;
+        }
+        for (PooledClient retired : this.retiredClients) {
+            if (retired.client == client) {
+                retired.release();
+                return;
+            }
+        }
+    }
+
+    private PooledClient getPooledClient(String remoteServerId, int maxConnections)
+    {
+        int connectionLimit = (maxConnections > 0) ? maxConnections : DEFAULT_MAX_CONNECTIONS;
+
+        PooledClient existing = this.clients.get(remoteServerId);
+        if (existing != null && existing.maxConnections == connectionLimit) {
+            return existing;
+        }
+
+        synchronized (this.clients) {
+            existing = this.clients.get(remoteServerId);
+            if (existing != null && existing.maxConnections == connectionLimit) {
+                return existing;
+            }
+            if (existing != null) {
+                // configuration has changed: in-flight requests keep using the old client until they are done
+                this.retire(existing);
+            }
+            PooledClient created = this.createClient(remoteServerId, connectionLimit);
+            this.clients.put(remoteServerId, created);
+            this.logger.debug("Created pooled HTTP client for remote server [{}] with at most [{}] connections",
+                remoteServerId, connectionLimit);
+            return created;
+        }
+    }
+
+    @Override
+    public void closeClient(String remoteServerId)
+    {
+        synchronized (this.clients) {
+            PooledClient existing = this.clients.get(remoteServerId);
+            if (existing != null) {
+                this.retire(existing);
+                this.clients.remove(remoteServerId);
+            }
+        }
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.retirementChecker.shutdownNow();
+        for (PooledClient client : this.clients.values()) {
+            this.close(client);
+        }
+        this.clients.clear();
+        for (PooledClient client : this.retiredClients) {
+            this.close(client);
+        }
+        this.retiredClients.clear();
+    }
+
+    /**
+     * Retires a client before it is removed from {@link #clients}, so that {@link #releaseClient} always finds it.
+     */
+    private void retire(PooledClient pooledClient)
+    {
+        pooledClient.retirementTime = System.currentTimeMillis();
+        this.retiredClients.add(pooledClient);
+    }
+
+    private void closeUnusedRetiredClients()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<PooledClient> iterator = this.retiredClients.iterator();
+        while (iterator.hasNext()) {
+            PooledClient retired = iterator.next();
+            int leased = retired.connectionManager.getTotalStats().getLeased();
+            boolean overdue = now - retired.retirementTime > MAX_RETIREMENT_MS;
+            if (retired.closeIfUnused(leased, overdue)) {
+                if (leased > 0) {
+                    this.logger.warn("Closing retired HTTP client for remote server [{}] with [{}] connections in use",
+                        retired.remoteServerId, leased);
+                }
+                iterator.remove();
+                this.close(retired);
+            }
+        }
+    }
+
+    private PooledClient createClient(String remoteServerId, int maxConnections)
+    {
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        connectionManager.setDefaultMaxPerRoute(maxConnections);
+        connectionManager.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY_MS);
+
+        CloseableHttpClient client = HttpClients.custom()
+            .setConnectionManager(connectionManager)
+            .setKeepAliveStrategy(KEEP_ALIVE_STRATEGY)
+            .evictExpiredConnections()
+            .evictIdleConnections(MAX_IDLE_TIME_MS, TimeUnit.MILLISECONDS)
+            .build();
+
+        return new PooledClient(remoteServerId, client, connectionManager, maxConnections);
+    }
+
+    private void close(PooledClient pooledClient)
+    {
+        try {
+            pooledClient.client.close();
+        } catch (IOException ex) {
+            this.logger.warn("Error closing HTTP client for remote server [{}]: {}", pooledClient.remoteServerId,
+                ex.getMessage());
+        }
+    }
+
+    private static final class PooledClient
+    {
+        private final String remoteServerId;
+
+        private final CloseableHttpClient client;
+
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        private final int maxConnections;
+
+        /** When the client was retired, {@code 0} while it is in use. */
+        private volatile long retirementTime;
+
+        /** Number of callers which acquired the client and did not release it yet; guarded by this. */
+        private int users;
+
+        /** Whether the client was chosen to be closed, after which it can't be acquired; guarded by this. */
+        private boolean closing;
+
+        PooledClient(String remoteServerId, CloseableHttpClient client,
+            PoolingHttpClientConnectionManager connectionManager, int maxConnections)
+        {
+            this.remoteServerId = remoteServerId;
+            this.client = client;
+            this.connectionManager = connectionManager;
+            this.maxConnections = maxConnections;
+        }
+
+        /**
+         * @return {@code true} if the client was marked as used, {@code false} if it is being closed
+         */
+        synchronized boolean acquire()
+        {
+            if (this.closing) {
+                return false;
+            }
+            this.users++;
+            return true;
+        }
+
+        synchronized void release()
+        {
+            this.users--;
+        }
+
+        /**
+         * Decides whether a retired client can be closed: it must not be used by anyone, unless it is overdue.
+         *
+         * @param leased the number of connections taken from the pool of the client
+         * @param overdue whether the client was retired long ago, and must be closed anyway
+         * @return {@code true} if the client must be closed, after which it can no longer be acquired
+         */
+        synchronized boolean closeIfUnused(int leased, boolean overdue)
+        {
+            this.closing = overdue || (this.users <= 0 && leased == 0);
+            return this.closing;
+        }
+    }
+}
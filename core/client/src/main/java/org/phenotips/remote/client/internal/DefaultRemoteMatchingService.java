@@ -18,7 +18,6 @@
 package org.phenotips.remote.client.internal;
 
 import org.phenotips.data.Patient;
-import org.phenotips.data.PatientRepository;
 import org.phenotips.data.permissions.AccessLevel;
 import org.phenotips.data.similarity.AccessType;
 import org.phenotips.data.similarity.PatientSimilarityViewFactory;
@@ -29,44 +28,76 @@
 import org.phenotips.remote.api.ApiDataConverter;
 import org.phenotips.remote.api.ApiViolationException;
 import org.phenotips.remote.api.OutgoingMatchRequest;
+import org.phenotips.remote.client.RemoteHttpClientManager;
 import org.phenotips.remote.client.RemoteMatchingService;
+import org.phenotips.remote.client.internal.ReferencePatientCache.ReferencePatient;
 import org.phenotips.remote.common.ApiFactory;
-import org.phenotips.remote.common.ApplicationConfiguration;
-import org.phenotips.remote.common.RemoteConfigurationManager;
+import org.phenotips.remote.common.ExecutionContextPropagator;
+import org.phenotips.remote.common.RemoteServerConfig;
+import org.phenotips.remote.common.RemoteServerRegistry;
 import org.phenotips.remote.common.internal.RemotePatientSimilarityView;
 import org.phenotips.remote.common.internal.api.DefaultJSONToMatchingPatientConverter;
+import org.phenotips.remote.hibernate.LastOutgoingRequests;
 import org.phenotips.remote.hibernate.RemoteMatchingStorageManager;
 import org.phenotips.remote.hibernate.internal.DefaultOutgoingMatchRequest;
 import org.phenotips.vocabulary.Vocabulary;
 import org.xwiki.component.annotation.Component;
-import org.xwiki.context.Execution;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
 import org.xwiki.stability.Unstable;
 
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.BiFunction;
 
 import javax.inject.Inject;
 import javax.inject.Named;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
 import org.apache.http.client.methods.CloseableHttpResponse;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.entity.ContentType;
 import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.CloseableHttpClient;
-import org.apache.http.impl.client.HttpClients;
-import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.objects.BaseObject;
 
 @Unstable
 @Component
 @Singleton
-public class DefaultRemoteMatchingService implements RemoteMatchingService
+public class DefaultRemoteMatchingService implements RemoteMatchingService, Initializable, Disposable
 {
     /**
      * Some remote servers reply with matches which they score highly but that have a local score of
@@ -79,15 +110,38 @@ public class DefaultRemoteMatchingService implements RemoteMatchingService
      * extremely low score (as computed by our algorithm) into the matching notification table and not to
      * display them on the patient page in the matching section.
      *
-     * TODO: review the threshold, and/or make it configurable from the remote matching admin section.
+     * This is the default threshold, which can be changed for each server in the remote matching admin section.
      */
     private static final Double MATCHING_NOTIFICATION_OUR_SCORE_THRESHOLD = 0.001;
 
-    @Inject
-    private Logger logger;
+    private static final int DEFAULT_CIRCUIT_BREAKER_FAILURES = 5;
+
+    private static final int DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS = 60;
+
+    private static final int DEFAULT_CONNECT_TIMEOUT_SECONDS = 10;
+
+    private static final int DEFAULT_SOCKET_TIMEOUT_SECONDS = 60;
+
+    private static final int DEFAULT_TOTAL_TIMEOUT_SECONDS = 120;
+
+    private static final int DEFAULT_MAX_RESPONSE_SIZE_MB = 20;
+
+    private static final long BYTES_IN_ONE_MB = 1024L * 1024L;
+
+    /** Maximum number of outgoing requests being sent in parallel by {@link #sendRequests}. */
+    private static final int FAN_OUT_THREADS = 8;
+
+    /** Maximum number of {@link #sendRequests} requests waiting for a thread; more requests are not sent. */
+    private static final int FAN_OUT_QUEUE_SIZE = 64;
+
+    /** How long {@link #sendRequests} waits for a reply to be processed, after the server's total timeout. */
+    private static final int REPLY_PROCESSING_GRACE_SECONDS = 30;
+
+    /** Number of remote patients scored together by one task of the scoring pool. */
+    private static final int SCORING_BATCH_SIZE = 25;
 
     @Inject
-    private Execution execution;
+    private Logger logger;
 
     @Inject
     private ApiFactory apiFactory;
@@ -105,7 +159,7 @@ public class DefaultRemoteMatchingService implements RemoteMatchingService
     private Vocabulary ontologyService;
 
     @Inject
-    private PatientRepository patientRepository;
+    private ReferencePatientCache referencePatientCache;
 
     @Inject
     private RemoteMatchingStorageManager requestStorageManager;
@@ -116,24 +170,46 @@ public class DefaultRemoteMatchingService implements RemoteMatchingService
     private PatientSimilarityViewFactory similarityViewFactory;
 
     @Inject
-    private RemoteConfigurationManager remoteConfigurationManager;
+    private RemoteServerRegistry remoteServerRegistry;
 
     @Inject
     private MatchingNotificationManager notificationManager;
 
+    @Inject
+    private RemoteHttpClientManager httpClientManager;
+
+    @Inject
+    private ExecutionContextPropagator contextPropagator;
+
+    private ThreadPoolExecutor fanOutExecutor;
+
+    /** Aborts the requests which take longer than the total timeout configured for their server. */
+    private ScheduledThreadPoolExecutor requestWatchdog;
+
+    /** Shared by all replies, so that scoring never uses more threads than there are cores. */
+    private ForkJoinPool scoringPool;
+
+    private final ConcurrentMap<String, TokenBucketRateLimiter> rateLimiters = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<String, RemoteServerCircuitBreaker> circuitBreakers = new ConcurrentHashMap<>();
+
     @Override
     public OutgoingMatchRequest sendRequest(String patientId, String remoteServerId, int addTopNGenes,
         List<PatientMatch> matchesList)
+    {
+        return this.sendRequest(patientId, remoteServerId, addTopNGenes, matchesList, null);
+    }
+
+    @Override
+    public OutgoingMatchRequest sendRequest(String patientId, String remoteServerId, int addTopNGenes,
+        List<PatientMatch> matchesList, Collection<OutgoingMatchRequest> unsavedRequests)
     {
         DefaultOutgoingMatchRequest request =
             new DefaultOutgoingMatchRequest(remoteServerId, ApiConfiguration.LATEST_API_VERSION_STRING, patientId);
 
-        XWikiContext context = this.getContext();
-
-        BaseObject configurationObject =
-            this.remoteConfigurationManager.getRemoteConfigurationGivenRemoteServerID(remoteServerId, context);
+        RemoteServerConfig configuration = this.remoteServerRegistry.getServer(remoteServerId);
 
-        if (configurationObject == null) {
+        if (configuration == null) {
             this.logger.error("Requested matching server is not configured: [{}]", remoteServerId);
             return this.generateErrorRequest(ApiConfiguration.ERROR_NOT_SENT,
                 "requested matching server [" + remoteServerId + "] is not configured", request);
@@ -141,11 +217,7 @@ public OutgoingMatchRequest sendRequest(String patientId, String remoteServerId,
 
         JSONObject requestJSON;
         try {
-            ApiDataConverter apiVersionSpecificConverter =
-                this.apiFactory.getDataConverterForApiVersion(ApiConfiguration.LATEST_API_VERSION_STRING);
-
-            requestJSON = apiVersionSpecificConverter.getOutgoingJSONGenerator()
-                .generateRequestJSON(remoteServerId, patientId, addTopNGenes);
+            requestJSON = this.generateRequestJSON(remoteServerId, patientId, addTopNGenes);
         } catch (ApiViolationException ex) {
             return this.generateErrorRequest(ApiConfiguration.ERROR_NOT_SENT, ex.getMessage(), request);
         }
@@ -155,7 +227,208 @@ public OutgoingMatchRequest sendRequest(String patientId, String remoteServerId,
                 "unable to convert patient with ID [" + patientId.toString() + "] to JSON", request);
         }
 
-        CloseableHttpClient client = HttpClients.createDefault();
+        return this.sendRequest(requestJSON, configuration, request, matchesList, unsavedRequests);
+    }
+
+    @Override
+    public Map<String, OutgoingMatchRequest> sendRequests(String patientId, Collection<String> remoteServerIds,
+        int addTopNGenes, List<PatientMatch> matchesList)
+    {
+        return this.sendRequests(patientId, remoteServerIds, addTopNGenes, matchesList, null);
+    }
+
+    @Override
+    public Map<String, OutgoingMatchRequest> sendRequests(String patientId, Collection<String> remoteServerIds,
+        int addTopNGenes, List<PatientMatch> matchesList, Collection<OutgoingMatchRequest> unsavedRequests)
+    {
+        Map<String, OutgoingMatchRequest> results = new LinkedHashMap<>();
+        if (remoteServerIds == null || remoteServerIds.isEmpty()) {
+            return results;
+        }
+
+        // the request JSON does not depend on the target server, so it is generated once and shared by all servers
+        JSONObject requestJSON = null;
+        String errorMessage = null;
+        try {
+            requestJSON = this.generateRequestJSON(null, patientId, addTopNGenes);
+            if (requestJSON == null) {
+                this.logger.error("Unable to convert patient to JSON: [{}]", patientId);
+                errorMessage = "unable to convert patient with ID [" + patientId + "] to JSON";
+            }
+        } catch (ApiViolationException ex) {
+            errorMessage = ex.getMessage();
+        }
+
+        List<RemoteServerTask> tasks = new ArrayList<>(remoteServerIds.size());
+        for (String remoteServerId : remoteServerIds) {
+            DefaultOutgoingMatchRequest request =
+                new DefaultOutgoingMatchRequest(remoteServerId, ApiConfiguration.LATEST_API_VERSION_STRING, patientId);
+            RemoteServerConfig configuration = this.remoteServerRegistry.getServer(remoteServerId);
+            if (requestJSON == null) {
+                results.put(remoteServerId,
+                    this.generateErrorRequest(ApiConfiguration.ERROR_NOT_SENT, errorMessage, request));
+            } else if (configuration == null) {
+                this.logger.error("Requested matching server is not configured: [{}]", remoteServerId);
+                results.put(remoteServerId, this.generateErrorRequest(ApiConfiguration.ERROR_NOT_SENT,
+                    "requested matching server [" + remoteServerId + "] is not configured", request));
+            } else {
+                RemoteServerTask task =
+                    new RemoteServerTask(requestJSON, configuration, request, unsavedRequests != null);
+                try {
+                    task.future = this.fanOutExecutor.submit(this.contextPropagator.wrap(task));
+                    tasks.add(task);
+                    // keeps the order of remoteServerIds in the results
+                    results.put(remoteServerId, null);
+                } catch (RejectedExecutionException ex) {
+                    this.logger.warn("Not sending matching request to [{}] for patient [{}]: too many pending requests",
+                        remoteServerId, patientId);
+                    results.put(remoteServerId, this.generateErrorRequest(ApiConfiguration.ERROR_NOT_SENT,
+                        "too many matching requests are waiting to be sent", request));
+                }
+            }
+        }
+
+        // all requests run in parallel, so the whole fan-out is bounded by the slowest server
+        for (RemoteServerTask task : tasks) {
+            RemoteServerReply reply = this.awaitReply(task);
+            results.put(task.configuration.getServerId(), reply.request);
+            matchesList.addAll(reply.matches);
+            if (unsavedRequests != null) {
+                unsavedRequests.addAll(reply.unsavedRequests);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Waits for one of the servers of a {@link #sendRequests fan-out}. A task still waiting in the queue when its
+     * server's total timeout elapses is cancelled, and a running task which goes past its server's total timeout plus
+     * {@value #REPLY_PROCESSING_GRACE_SECONDS} seconds for processing the reply is left to complete on its own. Running
+     * tasks are never interrupted, since they may already be storing their results.
+     *
+     * @return the reply of the server, or an error reply if the server could not be waited for
+     */
+    private RemoteServerReply awaitReply(RemoteServerTask task)
+    {
+        long timeout = TimeUnit.SECONDS.toMillis(
+            getPositiveValue(task.configuration.getTotalTimeout(), DEFAULT_TOTAL_TIMEOUT_SECONDS));
+        long grace = TimeUnit.SECONDS.toMillis(REPLY_PROCESSING_GRACE_SECONDS);
+        String serverId = task.configuration.getServerId();
+        String patientId = task.request.getLocalReferencePatientId();
+        try {
+            while (true) {
+                long startTime = task.getStartTime();
+                long deadline = (startTime > 0) ? startTime + timeout + grace : task.submitTime + timeout;
+                long timeLeft = deadline - System.currentTimeMillis();
+                if (timeLeft > 0) {
+                    try {
+                        task.future.get(timeLeft, TimeUnit.MILLISECONDS);
+                        break;
+                    } catch (TimeoutException ex) {
+                        // the deadline moves once the task starts, so it is computed again
+                        continue;
+                    }
+                }
+                if (startTime > 0 || task.cancelIfNotStarted()) {
+                    break;
+                }
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            task.cancelIfNotStarted();
+        } catch (ExecutionException ex) {
+            this.logger.error("Error sending matching request to [{}] for patient [{}]: [{}]", serverId, patientId,
+                ex.getCause());
+        }
+
+        DefaultOutgoingMatchRequest errorRequest =
+            new DefaultOutgoingMatchRequest(serverId, ApiConfiguration.LATEST_API_VERSION_STRING, patientId);
+        RemoteServerReply reply = task.abandon();
+        if (reply != null) {
+            return reply;
+        }
+        reply = new RemoteServerReply();
+        if (task.isCancelled()) {
+            task.future.cancel(false);
+            this.logger.warn("Matching request to [{}] for patient [{}] was not sent in time", serverId, patientId);
+            reply.request = this.generateErrorRequest(ApiConfiguration.ERROR_NOT_SENT,
+                "the request could not be sent in time", errorRequest);
+        } else if (task.future.isDone()) {
+            reply.request = this.generateErrorRequest(ApiConfiguration.ERROR_INTERNAL, null, errorRequest);
+        } else {
+            this.logger.error("Matching request to [{}] for patient [{}] timed out", serverId, patientId);
+            reply.request = this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM,
+                "no reply received in time", errorRequest);
+        }
+        return reply;
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.fanOutExecutor = new ThreadPoolExecutor(FAN_OUT_THREADS, FAN_OUT_THREADS, 60L, TimeUnit.SECONDS,
+            new ArrayBlockingQueue<Runnable>(FAN_OUT_QUEUE_SIZE),
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-fan-out-%d").daemon(true).build());
+        this.fanOutExecutor.allowCoreThreadTimeOut(true);
+
+        this.requestWatchdog = new ScheduledThreadPoolExecutor(1,
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-watchdog-%d").daemon(true).build());
+        this.requestWatchdog.setRemoveOnCancelPolicy(true);
+
+        this.scoringPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(),
+            new ForkJoinPool.ForkJoinWorkerThreadFactory()
+            {
+                @Override
+                public ForkJoinWorkerThread newThread(ForkJoinPool pool)
+                {
+                    ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+                    thread.setName("remote-matching-scoring-" + thread.getPoolIndex());
+                    return thread;
+                }
+            }, null, false);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.fanOutExecutor.shutdownNow();
+        this.requestWatchdog.shutdownNow();
+        this.scoringPool.shutdownNow();
+    }
+
+    private JSONObject generateRequestJSON(String remoteServerId, String patientId, int addTopNGenes)
+    {
+        ApiDataConverter apiVersionSpecificConverter =
+            this.apiFactory.getDataConverterForApiVersion(ApiConfiguration.LATEST_API_VERSION_STRING);
+
+        return apiVersionSpecificConverter.getOutgoingJSONGenerator()
+            .generateRequestJSON(remoteServerId, patientId, addTopNGenes);
+    }
+
+    /**
+     * @param unsavedRequests if not {@code null}, the sent request is added to this collection instead of being stored
+     */
+    private OutgoingMatchRequest sendRequest(JSONObject requestJSON, RemoteServerConfig configuration,
+        DefaultOutgoingMatchRequest request, List<PatientMatch> matchesList,
+        Collection<OutgoingMatchRequest> unsavedRequests)
+    {
+        // the client is held until the response is closed, so that it is not closed if it is replaced meanwhile
+        String remoteServerId = request.getRemoteServerId();
+        CloseableHttpClient client =
+            this.httpClientManager.acquireClient(remoteServerId, configuration.getMaxConnections());
+        try {
+            return this.sendRequest(requestJSON, configuration, request, matchesList, unsavedRequests, client);
+        } finally {
+            this.httpClientManager.releaseClient(remoteServerId, client);
+        }
+    }
+
+    private OutgoingMatchRequest sendRequest(JSONObject requestJSON, RemoteServerConfig configuration,
+        DefaultOutgoingMatchRequest request, List<PatientMatch> matchesList,
+        Collection<OutgoingMatchRequest> unsavedRequests, CloseableHttpClient client)
+    {
+        String remoteServerId = request.getRemoteServerId();
+        String patientId = request.getLocalReferencePatientId();
 
         StringEntity jsonEntity =
             new StringEntity(requestJSON.toString(), ContentType.create("application/json", "utf-8"));
@@ -168,56 +441,171 @@ public OutgoingMatchRequest sendRequest(String patientId, String remoteServerId,
         jsonEntity.setContentType(mimeType + "; charset=utf-8");
         this.logger.debug("Setting Content-Type: [{}]", jsonEntity.getContentType().toString());
 
-        String key = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_KEY_FIELD);
-        String baseURL = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_BASE_URL_FIELD);
+        String key = configuration.getRemoteAuthToken();
+        String baseURL = configuration.getBaseURL();
         if (baseURL.charAt(baseURL.length() - 1) != '/') {
             baseURL += "/";
         }
         String targetURL = baseURL + ApiConfiguration.REMOTE_URL_SEARCH_ENDPOINT;
 
+        // the circuit breaker is checked first, so that requests rejected because the server is unavailable don't use
+        // up the request rate
+        RemoteServerCircuitBreaker circuitBreaker = this.getCircuitBreaker(remoteServerId, configuration);
+        if (!circuitBreaker.allowRequest()) {
+            this.logger.warn("Not sending matching request to [{}] for patient [{}]: server marked as unavailable",
+                targetURL, patientId);
+            return this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM,
+                "remote server is temporarily unavailable", request);
+        }
+
+        if (!this.acquireRateLimit(remoteServerId, configuration)) {
+            circuitBreaker.recordNotSent();
+            this.logger.warn("Not sending matching request to [{}] for patient [{}]: request rate limit exceeded",
+                targetURL, patientId);
+            return this.generateErrorRequest(ApiConfiguration.ERROR_RATE_LIMITED,
+                "too many requests to the remote server", request);
+        }
+
         this.logger.error("Sending matching request to [" + targetURL + "] for patient " + patientId);
 
+        final HttpPost httpRequest = new HttpPost(targetURL);
+        httpRequest.setConfig(this.getRequestConfig(configuration));
+        httpRequest.setEntity(jsonEntity);
+        httpRequest.setHeader(ApiConfiguration.HTTPHEADER_KEY_PARAMETER, key);
+        httpRequest.setHeader(ApiConfiguration.HTTPHEADER_API_VERSION, mimeType);
+        this.logger.debug("Setting {}: [{}]", ApiConfiguration.HTTPHEADER_API_VERSION, mimeType);
+
+        // connect and socket timeouts do not bound a server which keeps sending data slowly, so the whole exchange
+        // is aborted if it is not over after the total timeout
+        int totalTimeout = getPositiveValue(configuration.getTotalTimeout(), DEFAULT_TOTAL_TIMEOUT_SECONDS);
+        ScheduledFuture<?> abortTask = this.requestWatchdog.schedule(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                httpRequest.abort();
+            }
+        }, totalTimeout, TimeUnit.SECONDS);
+
         CloseableHttpResponse httpResponse;
         try {
-            HttpPost httpRequest = new HttpPost(targetURL);
-            httpRequest.setEntity(jsonEntity);
-            httpRequest.setHeader(ApiConfiguration.HTTPHEADER_KEY_PARAMETER, key);
-            httpRequest.setHeader(ApiConfiguration.HTTPHEADER_API_VERSION, mimeType);
-            this.logger.debug("Setting {}: [{}]", ApiConfiguration.HTTPHEADER_API_VERSION, mimeType);
             httpResponse = client.execute(httpRequest);
         } catch (javax.net.ssl.SSLHandshakeException ex) {
+            abortTask.cancel(false);
             this.logger.error("Error sending matching request to [" + targetURL +
                 "]: SSL handshake exception: [{}]", ex.getMessage());
-            return this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM, "SSL handshake problem", request);
+            this.recordFailure(remoteServerId, circuitBreaker);
+            return this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM, "SSL handshake problem",
+                request);
         } catch (Exception ex) {
+            abortTask.cancel(false);
             this.logger.error("Error sending matching request to [" + targetURL + "]: [{}]", ex.getMessage());
-            return this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM, ex.getMessage(), request);
+            this.recordFailure(remoteServerId, circuitBreaker);
+            String errorMessage = abortTask.isDone() && !abortTask.isCancelled()
+                ? "no reply received within " + totalTimeout + " seconds" : ex.getMessage();
+            return this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM, errorMessage, request);
         }
 
-        try {
-            Integer httpStatus = (Integer) httpResponse.getStatusLine().getStatusCode();
-            String stringReply = EntityUtils.toString(httpResponse.getEntity());
+        // a server error is a failure right away, while other replies only count as a success once they were received
+        // completely, since the server can still fail or be aborted while sending the body
+        boolean serverError = httpResponse.getStatusLine().getStatusCode() >= ApiConfiguration.HTTP_SERVER_ERROR;
+        if (serverError) {
+            this.recordFailure(remoteServerId, circuitBreaker);
+        }
 
+        // the raw reply is compressed into the request object while it is being received, and is stored for audit
+        // purposes even if it is incorrect, or if receiving or processing it failed
+        Writer rawReply = null;
+        boolean stored = false;
+        // the response must always be closed, otherwise the pooled connection is never released
+        try (CloseableHttpResponse pooledResponse = httpResponse) {
+            Integer httpStatus = (Integer) pooledResponse.getStatusLine().getStatusCode();
             logger.error("Reply to matching request: STATUS: [{}]", httpStatus);
-            logger.debug("Reply to matching request: DATA: [{}]", stringReply);
 
-            // store sent request and received response in the request object which will be stored for audit purposes
-            // this will b stored even if reply is incorrect
+            // matches are parsed, scored and filtered one by one while the reply is being received
+            List<RemotePatientSimilarityView> parsedResults = Collections.emptyList();
+            rawReply = request.openResponseWriter();
+            try (MatchResultsReader replyReader = new MatchResultsReader(
+                this.getReplyReader(pooledResponse.getEntity(), configuration), rawReply)) {
+                if (ApiConfiguration.HTTP_OK.equals(httpStatus)) {
+                    parsedResults = this.getSimilarityResults(replyReader, request,
+                        this.getScoreThreshold(configuration));
+                }
+                replyReader.copyRawReply();
+            } finally {
+                abortTask.cancel(false);
+            }
+            if (!serverError) {
+                circuitBreaker.recordSuccess();
+            }
+
             request.addRequestJSON(requestJSON);
-            request.addResponseString(stringReply);
             request.setReplayHTTPStatus(httpStatus);
-            this.requestStorageManager.saveOutgoingRequest(request);
+            this.storeRequest(request, unsavedRequests);
+            stored = true;
 
             if (ApiConfiguration.HTTP_OK.equals(httpStatus)) {
-                List<RemotePatientSimilarityView> parsedResults = this.getSimilarityResults(request);
                 matchesList.addAll(this.notificationManager.saveOutgoingMatches(parsedResults, patientId,
                     request.getRemoteServerId()));
             }
 
             return request;
+        } catch (ReplyTooLargeException ex) {
+            // closing the response without consuming the rest of the reply drops the connection
+            this.logger.error("Discarding matching request reply by [{}] for patient [{}]: [{}]", targetURL, patientId,
+                ex.getMessage());
+            if (!serverError) {
+                // the server did reply, the reply is only too large to be accepted
+                circuitBreaker.recordSuccess();
+            }
+            this.generateErrorRequest(ApiConfiguration.ERROR_REPLY_TOO_LARGE, ex.getMessage(), request);
+        } catch (IOException ex) {
+            // includes the requests aborted after the total timeout
+            this.logger.error("Error receiving matching request reply by [" + targetURL + "]: [{}]", ex.getMessage());
+            if (!serverError) {
+                this.recordFailure(remoteServerId, circuitBreaker);
+            }
+            this.generateErrorRequest(ApiConfiguration.ERROR_COMMUNICATION_PROBLEM, ex.getMessage(), request);
         } catch (Exception ex) {
             this.logger.error("Error processing matching request reply by [" + targetURL + "]: [{}]", ex);
-            return this.generateErrorRequest(ApiConfiguration.ERROR_INTERNAL, null, request);
+            if (stored) {
+                // the stored request must keep the exchange as it happened
+                return this.generateErrorRequest(ApiConfiguration.ERROR_INTERNAL, null, new DefaultOutgoingMatchRequest(
+                    remoteServerId, ApiConfiguration.LATEST_API_VERSION_STRING, patientId));
+            }
+            this.generateErrorRequest(ApiConfiguration.ERROR_INTERNAL, null, request);
+        }
+
+        if (!stored) {
+            this.keepPartialReply(rawReply, request);
+            this.storeRequest(request, unsavedRequests);
+        }
+        return request;
+    }
+
+    private void storeRequest(DefaultOutgoingMatchRequest request, Collection<OutgoingMatchRequest> unsavedRequests)
+    {
+        if (unsavedRequests != null) {
+            unsavedRequests.add(request);
+        } else {
+            this.requestStorageManager.saveOutgoingRequest(request);
+        }
+    }
+
+    /**
+     * Closes the copy of a reply which could not be received or processed completely, so that the part received
+     * before the error is kept in the request.
+     */
+    private void keepPartialReply(Writer rawReply, OutgoingMatchRequest request)
+    {
+        if (rawReply == null) {
+            return;
+        }
+        try {
+            rawReply.close();
+        } catch (IOException ex) {
+            this.logger.warn("Failed to keep the partial reply by [{}] for patient [{}]: [{}]",
+                request.getRemoteServerId(), request.getLocalReferencePatientId(), ex.getMessage());
         }
     }
 
@@ -225,6 +613,7 @@ private OutgoingMatchRequest generateErrorRequest(Integer statusCode, String err
         DefaultOutgoingMatchRequest baseRequest)
     {
         baseRequest.setReplayHTTPStatus(statusCode);
+        baseRequest.setValidReply(false);
 
         JSONObject errorJSON = new JSONObject();
         if (errorMessage != null) {
@@ -235,9 +624,103 @@ private OutgoingMatchRequest generateErrorRequest(Integer statusCode, String err
         return baseRequest;
     }
 
-    private XWikiContext getContext()
+    /**
+     * Takes one request from the configured request rate for the server, without waiting.
+     *
+     * @return {@code true} if the request can be sent, {@code false} if the rate is exceeded
+     */
+    private boolean acquireRateLimit(String remoteServerId, RemoteServerConfig configuration)
+    {
+        final int requestsPerMinute = configuration.getMaxRequestsPerMinute();
+        if (requestsPerMinute <= 0) {
+            this.rateLimiters.remove(remoteServerId);
+            return true;
+        }
+        TokenBucketRateLimiter rateLimiter = this.rateLimiters.get(remoteServerId);
+        if (rateLimiter == null || rateLimiter.getRequestsPerMinute() != requestsPerMinute) {
+            // created atomically, so that concurrent requests never end up using different buckets
+            rateLimiter = this.rateLimiters.compute(remoteServerId,
+                new BiFunction<String, TokenBucketRateLimiter, TokenBucketRateLimiter>()
+                {
+                    @Override
+                    public TokenBucketRateLimiter apply(String serverId, TokenBucketRateLimiter existing)
+                    {
+                        if (existing != null && existing.getRequestsPerMinute() == requestsPerMinute) {
+                            return existing;
+                        }
+                        // allow bursts of up to 10 seconds worth of requests
+                        return new TokenBucketRateLimiter(requestsPerMinute, Math.max(1, requestsPerMinute / 6));
+                    }
+                });
+        }
+        return rateLimiter.tryAcquire();
+    }
+
+    private RequestConfig getRequestConfig(RemoteServerConfig configuration)
+    {
+        int connectTimeout = (int) TimeUnit.SECONDS.toMillis(
+            getPositiveValue(configuration.getConnectTimeout(), DEFAULT_CONNECT_TIMEOUT_SECONDS));
+        int socketTimeout = (int) TimeUnit.SECONDS.toMillis(
+            getPositiveValue(configuration.getSocketTimeout(), DEFAULT_SOCKET_TIMEOUT_SECONDS));
+        return RequestConfig.custom()
+            .setConnectTimeout(connectTimeout)
+            .setConnectionRequestTimeout(connectTimeout)
+            .setSocketTimeout(socketTimeout)
+            .build();
+    }
+
+    private Reader getReplyReader(HttpEntity entity, RemoteServerConfig configuration) throws IOException
+    {
+        if (entity == null) {
+            return new StringReader("");
+        }
+        Charset charset = ContentType.getOrDefault(entity).getCharset();
+        return new InputStreamReader(new SizeLimitedEntity(entity, this.getMaxResponseSize(configuration))
+            .getContent(), (charset != null) ? charset : StandardCharsets.UTF_8);
+    }
+
+    private long getMaxResponseSize(RemoteServerConfig configuration)
     {
-        return (XWikiContext) this.execution.getContext().getProperty("xwikicontext");
+        return BYTES_IN_ONE_MB * getPositiveValue(configuration.getMaxResponseSize(), DEFAULT_MAX_RESPONSE_SIZE_MB);
+    }
+
+    private static int getPositiveValue(int value, int defaultValue)
+    {
+        return (value > 0) ? value : defaultValue;
+    }
+
+    private RemoteServerCircuitBreaker getCircuitBreaker(String remoteServerId, RemoteServerConfig configuration)
+    {
+        final int failureThreshold =
+            getPositiveValue(configuration.getCircuitBreakerFailures(), DEFAULT_CIRCUIT_BREAKER_FAILURES);
+        final long openDurationMs = TimeUnit.SECONDS.toMillis(
+            getPositiveValue(configuration.getCircuitBreakerOpenSeconds(), DEFAULT_CIRCUIT_BREAKER_OPEN_SECONDS));
+
+        RemoteServerCircuitBreaker circuitBreaker = this.circuitBreakers.get(remoteServerId);
+        if (circuitBreaker == null || !circuitBreaker.hasSettings(failureThreshold, openDurationMs)) {
+            // created atomically, so that failures recorded by concurrent requests are never lost
+            circuitBreaker = this.circuitBreakers.compute(remoteServerId,
+                new BiFunction<String, RemoteServerCircuitBreaker, RemoteServerCircuitBreaker>()
+                {
+                    @Override
+                    public RemoteServerCircuitBreaker apply(String serverId, RemoteServerCircuitBreaker existing)
+                    {
+                        if (existing != null && existing.hasSettings(failureThreshold, openDurationMs)) {
+                            return existing;
+                        }
+                        return new RemoteServerCircuitBreaker(failureThreshold, openDurationMs);
+                    }
+                });
+        }
+        return circuitBreaker;
+    }
+
+    private void recordFailure(String remoteServerId, RemoteServerCircuitBreaker circuitBreaker)
+    {
+        if (circuitBreaker.recordFailure()) {
+            this.logger.error("Remote server [{}] is failing, not sending it any requests for the next [{}] seconds",
+                remoteServerId, TimeUnit.MILLISECONDS.toSeconds(circuitBreaker.getOpenDurationMs()));
+        }
     }
 
     @Override
@@ -252,6 +735,19 @@ public OutgoingMatchRequest getLastSuccessfulOutgoingRequest(String remoteServer
         return this.requestStorageManager.getLastSuccessfulOutgoingRequest(patientId, remoteServerId);
     }
 
+    @Override
+    public LastOutgoingRequests getLastOutgoingRequests(String remoteServerId, String patientId)
+    {
+        return this.requestStorageManager.getLastOutgoingRequests(remoteServerId, patientId);
+    }
+
+    @Override
+    public Map<String, Map<String, LastOutgoingRequests>> getLastOutgoingRequests(Collection<String> remoteServerIds,
+        Collection<String> patientIds)
+    {
+        return this.requestStorageManager.getLastOutgoingRequests(remoteServerIds, patientIds);
+    }
+
     @Override
     public List<RemotePatientSimilarityView> getSimilarityResults(OutgoingMatchRequest request)
     {
@@ -269,7 +765,7 @@ public List<RemotePatientSimilarityView> getSimilarityResults(OutgoingMatchReque
 
         // generate local scoring and feature-matching using the same algorithm we use for local similarity scores
         AccessType access = new DefaultAccessType(this.matchAccess, this.viewAccess, this.matchAccess);
-        Patient reference = this.patientRepository.get(request.getLocalReferencePatientId());
+        ReferencePatient reference = this.referencePatientCache.get(request.getLocalReferencePatientId());
 
         if (reference == null) {
             return resultsList;
@@ -277,57 +773,386 @@ public List<RemotePatientSimilarityView> getSimilarityResults(OutgoingMatchReque
 
         DefaultJSONToMatchingPatientConverter patientConverter = new DefaultJSONToMatchingPatientConverter(true);
 
-        // JSONArray processedResults = new JSONArray();
-
         JSONArray matches = replyJSON.optJSONArray("results");
         if (matches == null) {
             this.logger.error("No key 'results' in reply JSON");
             return resultsList;
         }
 
+        ScoringBatches scoring = new ScoringBatches(reference, access, patientConverter,
+            this.getScoreThreshold(this.remoteServerRegistry.getServer(request.getRemoteServerId())));
         for (int i = 0; i < matches.length(); ++i) {
-            try {
-                JSONObject next = matches.getJSONObject(i);
-                JSONObject nextPatient = next.getJSONObject("patient");
+            JSONObject next = matches.optJSONObject(i);
+            if (next == null) {
+                this.logger.error("Error parsing one of the patients from JSON: not a JSON object");
+                continue;
+            }
+            scoring.add(next);
+        }
+        resultsList = scoring.getResults();
 
-                // skip test patients (it seems that API allows mixing real and test patients in the same response)
-                if (nextPatient.optBoolean(ApiConfiguration.JSON_PATIENT_TEST, false)) {
-                    continue;
-                }
+        this.logMinorErrors(patientConverter, request);
 
-                Patient modelRemotePatient = patientConverter.convert(nextPatient);
+        return resultsList;
+    }
 
-                double patientScore = 0;
-                try {
-                    patientScore = next.getJSONObject("score").getDouble("patient");
-                } catch (Exception ex) {
-                    this.logger.error("Invalid score in JSON for patient [{}]", modelRemotePatient.getId());
-                    throw new ApiViolationException(
-                        "Invalid score in JSON for patient [" + modelRemotePatient.getId() + "]");
-                }
+    /**
+     * Same as {@link #getSimilarityResults(OutgoingMatchRequest)}, but reads the matches directly from the reply while
+     * it is being received, so that only the remote patients being scored are kept in memory, besides those which are
+     * kept as results. An invalid reply is logged and results in the matches parsed before the error. The reply is
+     * marked as valid in the request only if its {@code results} array was found and read completely, so that its
+     * validity is known without parsing the stored reply again.
+     *
+     * @throws IOException if the reply could not be received completely
+     */
+    private List<RemotePatientSimilarityView> getSimilarityResults(MatchResultsReader replyReader,
+        DefaultOutgoingMatchRequest request, double scoreThreshold) throws IOException
+    {
+        AccessType access = new DefaultAccessType(this.matchAccess, this.viewAccess, this.matchAccess);
+        ReferencePatient reference = this.referencePatientCache.get(request.getLocalReferencePatientId());
 
-                RemotePatientSimilarityView similarityView = new RemotePatientSimilarityView(modelRemotePatient,
-                    reference, access, patientScore);
+        DefaultJSONToMatchingPatientConverter patientConverter = new DefaultJSONToMatchingPatientConverter(true);
 
-                if (similarityView.getScore() >= MATCHING_NOTIFICATION_OUR_SCORE_THRESHOLD) {
-                    resultsList.add(similarityView);
+        // matches already read are being scored while the next ones are received; without a reference patient the
+        // matches can't be scored, but they are still read to check the reply
+        ScoringBatches scoring =
+            (reference == null) ? null : new ScoringBatches(reference, access, patientConverter, scoreThreshold);
+        try {
+            if (!replyReader.findResults()) {
+                this.logger.error("No key 'results' in reply JSON");
+                return new LinkedList<>();
+            }
+            JSONObject next;
+            while ((next = replyReader.nextResult()) != null) {
+                if (scoring != null) {
+                    scoring.add(next);
                 }
-            } catch (ApiViolationException ex) {
-                this.logger.error(
-                    "Parsing incoming patients: one of the patients did not satisfy API requirements: [{}]",
-                    ex.getMessage());
+            }
+            request.setValidReply(true);
+        } catch (JSONException ex) {
+            this.logger.error("Invalid reply JSON from [{}] for patient [{}]: [{}]", request.getRemoteServerId(),
+                request.getLocalReferencePatientId(), ex.getMessage());
+        } catch (IOException ex) {
+            if (scoring != null) {
+                scoring.cancel();
+            }
+            throw ex;
+        }
+        if (scoring == null) {
+            return new LinkedList<>();
+        }
+        List<RemotePatientSimilarityView> resultsList = scoring.getResults();
+
+        this.logMinorErrors(patientConverter, request);
+
+        return resultsList;
+    }
+
+    /**
+     * Converts and scores one of the matches from a remote server reply.
+     *
+     * @return the scored match, or {@code null} if it is a test patient, has an invalid score, or scores below the
+     *         notification threshold
+     */
+    private RemotePatientSimilarityView getSimilarityView(JSONObject next, Patient reference, AccessType access,
+        DefaultJSONToMatchingPatientConverter patientConverter, SimilarityPreFilter preFilter, double scoreThreshold)
+    {
+        try {
+            JSONObject nextPatient = next.getJSONObject("patient");
+
+            // skip test patients (it seems that API allows mixing real and test patients in the same response)
+            if (nextPatient.optBoolean(ApiConfiguration.JSON_PATIENT_TEST, false)) {
+                return null;
+            }
+
+            Patient modelRemotePatient = patientConverter.convert(nextPatient);
+
+            double patientScore = 0;
+            try {
+                patientScore = next.getJSONObject("score").getDouble("patient");
             } catch (Exception ex) {
-                this.logger.error("Error parsing one of the patients from JSON: [{}]", ex);
+                this.logger.error("Invalid score in JSON for patient [{}]", modelRemotePatient.getId());
+                throw new ApiViolationException(
+                    "Invalid score in JSON for patient [" + modelRemotePatient.getId() + "]");
             }
+
+            // building the similarity view is expensive, and most matches of junk-heavy replies end up below the
+            // threshold anyway, so patients which can not have a positive score are skipped right away
+            if (scoreThreshold > 0 && !preFilter.mayMatch(modelRemotePatient)) {
+                return null;
+            }
+
+            RemotePatientSimilarityView similarityView = new RemotePatientSimilarityView(modelRemotePatient,
+                reference, access, patientScore);
+
+            if (similarityView.getScore() >= scoreThreshold) {
+                return similarityView;
+            }
+        } catch (ApiViolationException ex) {
+            this.logger.error(
+                "Parsing incoming patients: one of the patients did not satisfy API requirements: [{}]",
+                ex.getMessage());
+        }
+        return null;
+    }
+
+    /**
+     * @param configuration the configuration of a remote server, may be {@code null}
+     * @return the minimum local score of the matches found by the server which are kept
+     */
+    private double getScoreThreshold(RemoteServerConfig configuration)
+    {
+        if (configuration == null || configuration.getMatchScoreThreshold() == null) {
+            return MATCHING_NOTIFICATION_OUR_SCORE_THRESHOLD;
         }
+        return configuration.getMatchScoreThreshold();
+    }
 
+    private void logMinorErrors(DefaultJSONToMatchingPatientConverter patientConverter, OutgoingMatchRequest request)
+    {
         if (patientConverter.hasLoggedMinorErrors()) {
             this.logger.error("While parsing [{}] server response for patient [{}] the following minor errors"
                     + " were encountered:", request.getRemoteServerId(), request.getLocalReferencePatientId());
             patientConverter.logGroupedMinorErrors();
         }
+        if (this.logger.isDebugEnabled()) {
+            this.logger.debug("Vocabulary term caches: [{}]",
+                DefaultJSONToMatchingPatientConverter.getTermCacheStatistics());
+        }
+    }
 
-        // replyJSON.element("results", processedResults);
-        return resultsList;
+    /**
+     * Scores the matches of one reply in parallel on the scoring pool: matches are grouped in batches which are scored
+     * as soon as they are full, and results are collected in the order in which matches were added. At most two
+     * batches per core are pending at any time, so that a reply which is received faster than it can be scored does
+     * not pile up in memory. Replies smaller than one batch are scored by the calling thread.
+     */
+    private final class ScoringBatches
+    {
+        private final Patient reference;
+
+        private final AccessType access;
+
+        private final DefaultJSONToMatchingPatientConverter patientConverter;
+
+        private final SimilarityPreFilter preFilter;
+
+        private final double scoreThreshold;
+
+        private final int maxPendingBatches = 2 * DefaultRemoteMatchingService.this.scoringPool.getParallelism();
+
+        private final LinkedList<Future<List<RemotePatientSimilarityView>>> pendingBatches = new LinkedList<>();
+
+        private final List<RemotePatientSimilarityView> results = new LinkedList<>();
+
+        private List<JSONObject> batch = new ArrayList<>(SCORING_BATCH_SIZE);
+
+        ScoringBatches(ReferencePatient reference, AccessType access,
+            DefaultJSONToMatchingPatientConverter patientConverter, double scoreThreshold)
+        {
+            this.reference = reference.getPatient();
+            this.access = access;
+            this.patientConverter = patientConverter;
+            this.preFilter = reference.getPreFilter();
+            this.scoreThreshold = scoreThreshold;
+        }
+
+        void add(JSONObject match)
+        {
+            this.batch.add(match);
+            if (this.batch.size() == SCORING_BATCH_SIZE) {
+                this.pendingBatches.add(DefaultRemoteMatchingService.this.scoringPool.submit(
+                    DefaultRemoteMatchingService.this.contextPropagator.wrap(this.newTask(this.batch))));
+                this.batch = new ArrayList<>(SCORING_BATCH_SIZE);
+                if (this.pendingBatches.size() > this.maxPendingBatches) {
+                    this.collect(this.pendingBatches.removeFirst());
+                }
+            }
+        }
+
+        List<RemotePatientSimilarityView> getResults()
+        {
+            if (this.pendingBatches.isEmpty()) {
+                this.results.addAll(this.score(this.batch));
+            } else {
+                if (!this.batch.isEmpty()) {
+                    this.pendingBatches.add(DefaultRemoteMatchingService.this.scoringPool.submit(
+                        DefaultRemoteMatchingService.this.contextPropagator.wrap(this.newTask(this.batch))));
+                }
+                while (!this.pendingBatches.isEmpty()) {
+                    this.collect(this.pendingBatches.removeFirst());
+                }
+            }
+            this.batch = new ArrayList<>(SCORING_BATCH_SIZE);
+            return this.results;
+        }
+
+        void cancel()
+        {
+            for (Future<List<RemotePatientSimilarityView>> pending : this.pendingBatches) {
+                pending.cancel(true);
+            }
+            this.pendingBatches.clear();
+        }
+
+        private void collect(Future<List<RemotePatientSimilarityView>> pending)
+        {
+            try {
+                this.results.addAll(pending.get());
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                this.cancel();
+            } catch (ExecutionException ex) {
+                DefaultRemoteMatchingService.this.logger.error("Error scoring remote patients: [{}]", ex.getCause());
+            }
+        }
+
+        private Callable<List<RemotePatientSimilarityView>> newTask(final List<JSONObject> matches)
+        {
+            return new Callable<List<RemotePatientSimilarityView>>()
+            {
+                @Override
+                public List<RemotePatientSimilarityView> call()
+                {
+                    return score(matches);
+                }
+            };
+        }
+
+        private List<RemotePatientSimilarityView> score(List<JSONObject> matches)
+        {
+            List<RemotePatientSimilarityView> scored = new ArrayList<>(matches.size());
+
+            // resolve the terms of the whole batch with a few vocabulary queries, instead of one query per term
+            List<JSONObject> patients = new ArrayList<>(matches.size());
+            for (JSONObject next : matches) {
+                patients.add(next.optJSONObject(ApiConfiguration.REPLY_JSON_RESULTS_PATIENT));
+            }
+            this.patientConverter.prefetchTerms(patients);
+
+            for (JSONObject next : matches) {
+                try {
+                    RemotePatientSimilarityView similarityView =
+                        getSimilarityView(next, this.reference, this.access, this.patientConverter, this.preFilter,
+                            this.scoreThreshold);
+                    if (similarityView != null) {
+                        scored.add(similarityView);
+                    }
+                } catch (Exception ex) {
+                    DefaultRemoteMatchingService.this.logger.error("Error parsing one of the patients from JSON: [{}]",
+                        ex);
+                }
+            }
+            return scored;
+        }
+    }
+
+    /**
+     * Sends the shared request JSON to one of the servers of a {@link #sendRequests fan-out}. Once the task starts, it
+     * is never cancelled; if the caller stops waiting for it, the task stores its requests itself.
+     */
+    private final class RemoteServerTask implements Runnable
+    {
+        private final JSONObject requestJSON;
+
+        private final RemoteServerConfig configuration;
+
+        private final DefaultOutgoingMatchRequest request;
+
+        private final boolean collectUnsavedRequests;
+
+        private final long submitTime = System.currentTimeMillis();
+
+        private Future<?> future;
+
+        /** When the task started, {@code 0} while it is still queued; guarded by this. */
+        private long startTime;
+
+        /** Guarded by this. */
+        private boolean cancelled;
+
+        /** Whether the caller stopped waiting for the reply; guarded by this. */
+        private boolean abandoned;
+
+        /** The reply handed over to the caller; guarded by this. */
+        private RemoteServerReply reply;
+
+        RemoteServerTask(JSONObject requestJSON, RemoteServerConfig configuration, DefaultOutgoingMatchRequest request,
+            boolean collectUnsavedRequests)
+        {
+            this.requestJSON = requestJSON;
+            this.configuration = configuration;
+            this.request = request;
+            this.collectUnsavedRequests = collectUnsavedRequests;
+        }
+
+        @Override
+        public void run()
+        {
+            synchronized (this) {
+                if (this.cancelled) {
+                    return;
+                }
+                this.startTime = System.currentTimeMillis();
+            }
+            RemoteServerReply result = new RemoteServerReply();
+            result.request = sendRequest(this.requestJSON, this.configuration, this.request, result.matches,
+                this.collectUnsavedRequests ? result.unsavedRequests : null);
+            synchronized (this) {
+                if (!this.abandoned) {
+                    this.reply = result;
+                    return;
+                }
+            }
+            // nobody will store the request, since the caller is no longer waiting for it
+            if (!result.unsavedRequests.isEmpty()) {
+                DefaultRemoteMatchingService.this.requestStorageManager.saveOutgoingRequests(result.unsavedRequests);
+            }
+        }
+
+        synchronized long getStartTime()
+        {
+            return this.startTime;
+        }
+
+        synchronized boolean isCancelled()
+        {
+            return this.cancelled;
+        }
+
+        /**
+         * @return {@code true} if the task was cancelled before it started, {@code false} if it already started
+         */
+        synchronized boolean cancelIfNotStarted()
+        {
+            if (this.startTime == 0) {
+                this.cancelled = true;
+            }
+            return this.cancelled;
+        }
+
+        /**
+         * Stops waiting for the task.
+         *
+         * @return the reply if the task already completed successfully, {@code null} otherwise
+         */
+        synchronized RemoteServerReply abandon()
+        {
+            this.abandoned = true;
+            return this.reply;
+        }
+    }
+
+    /**
+     * The outcome of one {@link RemoteServerTask}; matches are collected separately for each server and merged by the
+     * calling thread, so that the caller's collections are never modified concurrently.
+     */
+    private static final class RemoteServerReply
+    {
+        private OutgoingMatchRequest request;
+
+        private final List<PatientMatch> matches = new LinkedList<>();
+
+        private final List<OutgoingMatchRequest> unsavedRequests = new LinkedList<>();
     }
 }
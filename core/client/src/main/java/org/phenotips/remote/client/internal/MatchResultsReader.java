@@ -0,0 +1,217 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import org.phenotips.remote.api.ApiConfiguration;
+
+import java.io.Closeable;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.json.JSONTokener;
+
+/**
+ * Pull parser for the reply of a remote server to a match request: the matches listed in the {@code results} array of
+ * the reply are returned one at a time, so that only one of them has to be kept in memory while it is being processed,
+ * instead of building the JSON tree of the whole reply. Everything read is also copied to a writer, so that the raw
+ * reply can still be stored for audit purposes without being held in memory as a whole.
+ *
+ * @version $Id$
+ */
+public class MatchResultsReader implements Closeable
+{
+    private final CopyingReader reader;
+
+    private final JSONTokener tokener;
+
+    private boolean inResults;
+
+    private boolean firstResult;
+
+    /**
+     * @param reader the reply of the remote server
+     * @param copy where everything read from the reply is copied to; it is closed by {@link #copyRawReply()}
+     */
+    public MatchResultsReader(Reader reader, Writer copy)
+    {
+        this.reader = new CopyingReader(reader, copy);
+        this.tokener = new JSONTokener(this.reader);
+    }
+
+    /**
+     * Skips the top level keys of the reply until the {@code results} array is reached.
+     *
+     * @return {@code true} if the reply has a {@code results} array, {@code false} otherwise
+     * @throws IOException if reading the reply failed
+     * @throws JSONException if the reply is not a valid JSON object
+     */
+    public boolean findResults() throws IOException
+    {
+        try {
+            if (this.tokener.nextClean() != '{') {
+                throw this.tokener.syntaxError("A JSONObject text must begin with '{'");
+            }
+            while (true) {
+                char c = this.tokener.nextClean();
+                if (c == '}' || c == 0) {
+                    return false;
+                }
+                if (c != ',') {
+                    this.tokener.back();
+                }
+                String key = this.tokener.nextValue().toString();
+                if (this.tokener.nextClean() != ':') {
+                    throw this.tokener.syntaxError("Expected a ':' after a key");
+                }
+                if (ApiConfiguration.REPLY_JSON_RESULTS.equals(key)) {
+                    if (this.tokener.nextClean() != '[') {
+                        throw this.tokener.syntaxError("A JSONArray text must start with '['");
+                    }
+                    this.inResults = true;
+                    this.firstResult = true;
+                    return true;
+                }
+                // other top level values are small, and are parsed only to be skipped
+                this.tokener.nextValue();
+            }
+        } catch (JSONException ex) {
+            throw rethrowIOException(ex);
+        }
+    }
+
+    /**
+     * Parses the next match from the {@code results} array.
+     *
+     * @return the next match, or {@code null} once all matches have been read
+     * @throws IOException if reading the reply failed
+     * @throws JSONException if the match is not valid JSON
+     */
+    public JSONObject nextResult() throws IOException
+    {
+        if (!this.inResults) {
+            return null;
+        }
+        try {
+            char c = this.tokener.nextClean();
+            if (c == ',' && !this.firstResult) {
+                c = this.tokener.nextClean();
+            }
+            this.firstResult = false;
+            if (c == ']') {
+                this.inResults = false;
+                return null;
+            }
+            this.tokener.back();
+            Object value = this.tokener.nextValue();
+            if (!(value instanceof JSONObject)) {
+                throw this.tokener.syntaxError("Expected a JSONObject in the results array");
+            }
+            return (JSONObject) value;
+        } catch (JSONException ex) {
+            this.inResults = false;
+            throw rethrowIOException(ex);
+        }
+    }
+
+    /**
+     * Reads the rest of the reply, if any, so that the whole reply as it was received is copied, and then closes the
+     * copy. If this isn't called, e.g. because reading the reply failed, the copy is left incomplete and open.
+     *
+     * @throws IOException if reading the reply or writing the copy failed
+     */
+    public void copyRawReply() throws IOException
+    {
+        char[] buffer = new char[4096];
+        while (this.reader.read(buffer, 0, buffer.length) != -1) {
+            // everything read is copied by the reader
+        }
+        this.reader.closeCopy();
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        this.reader.close();
+    }
+
+    /**
+     * JSONTokener wraps I/O errors, e.g. a {@link ReplyTooLargeException}, into JSONExceptions; those are unwrapped so
+     * that communication problems can be told apart from invalid replies.
+     */
+    private static JSONException rethrowIOException(JSONException ex) throws IOException
+    {
+        if (ex.getCause() instanceof IOException) {
+            throw (IOException) ex.getCause();
+        }
+        return ex;
+    }
+
+    private static final class CopyingReader extends FilterReader
+    {
+        private final Writer copy;
+
+        CopyingReader(Reader in, Writer copy)
+        {
+            super(in);
+            this.copy = copy;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int c = super.read();
+            if (c != -1) {
+                this.copy.write(c);
+            }
+            return c;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException
+        {
+            int count = super.read(cbuf, off, len);
+            if (count > 0) {
+                this.copy.write(cbuf, off, count);
+            }
+            return count;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            // skipped characters would be missing from the copy
+            char[] buffer = new char[(int) Math.min(n, 4096)];
+            return Math.max(0, this.read(buffer, 0, buffer.length));
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        void closeCopy() throws IOException
+        {
+            this.copy.close();
+        }
+    }
+}
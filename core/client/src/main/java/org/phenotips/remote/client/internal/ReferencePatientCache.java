@@ -0,0 +1,82 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import org.phenotips.data.Patient;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Keeps the local patients used as the reference of remote match requests, together with the data derived from them
+ * which is needed for scoring remote matches, so that they are not loaded and computed again for each reply. This
+ * matters when the same patient is matched against many servers, or when a large reply is scored.
+ *
+ * @version $Id$
+ */
+@Role
+public interface ReferencePatientCache
+{
+    /**
+     * @param patientId the identifier of a local patient
+     * @return the patient and its derived data, or {@code null} if the patient does not exist
+     */
+    ReferencePatient get(String patientId);
+
+    /**
+     * Forgets a patient, which must be done whenever it is modified or deleted.
+     *
+     * @param patientId the identifier of a local patient
+     */
+    void invalidate(String patientId);
+
+    /**
+     * A local patient and the data derived from it used when scoring remote matches.
+     */
+    final class ReferencePatient
+    {
+        private final Patient patient;
+
+        private final SimilarityPreFilter preFilter;
+
+        /**
+         * @param patient the local patient
+         * @param preFilter the pre-scoring filter built for the patient
+         */
+        public ReferencePatient(Patient patient, SimilarityPreFilter preFilter)
+        {
+            this.patient = patient;
+            this.preFilter = preFilter;
+        }
+
+        /**
+         * @return the local patient
+         */
+        public Patient getPatient()
+        {
+            return this.patient;
+        }
+
+        /**
+         * @return the pre-scoring filter built for the patient
+         */
+        public SimilarityPreFilter getPreFilter()
+        {
+            return this.preFilter;
+        }
+    }
+}
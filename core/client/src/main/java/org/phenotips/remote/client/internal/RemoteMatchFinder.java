@@ -25,30 +25,29 @@
 import org.phenotips.remote.api.ApiConfiguration;
 import org.phenotips.remote.api.OutgoingMatchRequest;
 import org.phenotips.remote.client.RemoteMatchingService;
-import org.phenotips.remote.common.ApplicationConfiguration;
-import org.phenotips.remote.common.RemoteConfigurationManager;
+import org.phenotips.remote.common.RemoteServerConfig;
+import org.phenotips.remote.common.RemoteServerRegistry;
+import org.phenotips.remote.hibernate.LastOutgoingRequests;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.model.reference.DocumentReferenceResolver;
 import org.xwiki.model.reference.EntityReference;
 
+import java.util.Collection;
 import java.util.Date;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.inject.Inject;
 import javax.inject.Named;
-import javax.inject.Provider;
 import javax.inject.Singleton;
 import javax.ws.rs.core.Response;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONObject;
 
-import com.xpn.xwiki.XWikiContext;
-import com.xpn.xwiki.objects.BaseObject;
-
 /**
  * @version $Id$
  */
@@ -61,15 +60,12 @@ public class RemoteMatchFinder extends AbstractMatchFinder implements MatchFinde
 
     private static final String REMOTE_MATCHING_CONSENT_ID = "matching";
 
-    @Inject
-    private Provider<XWikiContext> contextProvider;
-
     @Inject
     @Named("current")
     private DocumentReferenceResolver<EntityReference> entityResolver;
 
     @Inject
-    private RemoteConfigurationManager remoteConfigurationManager;
+    private RemoteServerRegistry remoteServerRegistry;
 
     @Inject
     private RemoteMatchingService matchingService;
@@ -115,6 +111,14 @@ protected Response specificFindMatches(Patient patient, String remoteId, List<Pa
                 if (remoteResponse.errorContactingRemoteServer()) {
                     this.logger.error("Unable to connect to remote server [{}]", remoteId);
                     return Response.status(Response.Status.SERVICE_UNAVAILABLE).build();
+                } else if (ApiConfiguration.ERROR_RATE_LIMITED.equals(remoteResponse.getRequestStatusCode())) {
+                    this.logger.warn("Request rate limit of remote server [{}] exceeded, patient [{}] not matched",
+                        remoteId, patient.getId());
+                    return Response.status(ApiConfiguration.HTTP_TOO_MANY_REQUESTS).build();
+                } else if (ApiConfiguration.ERROR_REPLY_TOO_LARGE.equals(remoteResponse.getRequestStatusCode())) {
+                    this.logger.error("Reply of remote server [{}] for patient [{}] is too large", remoteId,
+                        patient.getId());
+                    return Response.status(Response.Status.NOT_ACCEPTABLE).build();
                 } else {
                     this.logger.error("Could not initialte an MME match request for patient [{}]", patient.getId());
                     return Response.status(Response.Status.CONFLICT).build();
@@ -147,23 +151,15 @@ protected Response specificFindMatches(Patient patient, String remoteId, List<Pa
 
     private Set<String> getRemotesList()
     {
-        XWikiContext context = this.contextProvider.get();
-        List<BaseObject> potentialRemotes = this.remoteConfigurationManager.getListOfRemotes(context);
-
         Set<String> remoteIdsList = new HashSet<>();
-        for (BaseObject remote : potentialRemotes) {
-            if (remote == null) {
-                continue;
-            }
-
-            String configuredServerId = remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_ID);
+        for (RemoteServerConfig remote : this.remoteServerRegistry.getServers()) {
+            String configuredServerId = remote.getServerId();
             if (StringUtils.isEmpty(configuredServerId)) {
                 continue;
             }
 
             // Include only servers that are marked for remote search
-            int searchMatches = remote.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_SEARCH_MATCHES);
-            if (searchMatches != 1) {
+            if (!remote.isSearchMatches()) {
                 continue;
             }
 
@@ -181,17 +177,52 @@ public JSONObject getLastUpdatedDateForServerForPatient(String patientId, String
             return null;
         }
 
+        return this.getLastUpdateStatus(this.matchingService.getLastOutgoingRequests(serverId, patientId));
+    }
+
+    /**
+     * Bulk version of {@link #getLastUpdatedDateForServerForPatient(String, String)}, which returns the last update
+     * status of many patients on all the servers used for remote matching, using as few database queries as possible.
+     *
+     * @param patientIds the local patients to look for
+     * @return a JSON object with the last update status for every patient and server, in the same format as the one
+     *         returned by {@link #getLastUpdatedDateForServerForPatient(String, String)}, e.g.
+     *         <code>{"P0000001": {"server1": {"lastMatchUpdateDate": ..., ...}, ...}, ...}</code>
+     */
+    public JSONObject getLastUpdatedDatesForPatients(Collection<String> patientIds)
+    {
         JSONObject result = new JSONObject();
+        if (patientIds == null || patientIds.isEmpty()) {
+            return result;
+        }
+        Set<String> supportedServers = this.getSupportedServerIdList();
+        Map<String, Map<String, LastOutgoingRequests>> lastRequests =
+            this.matchingService.getLastOutgoingRequests(supportedServers, patientIds);
+        LastOutgoingRequests noRequests = new LastOutgoingRequests(null, null);
+        for (String patientId : patientIds) {
+            Map<String, LastOutgoingRequests> patientRequests = lastRequests.get(patientId);
+            JSONObject patientResult = new JSONObject();
+            for (String serverId : supportedServers) {
+                LastOutgoingRequests serverRequests = (patientRequests == null) ? null : patientRequests.get(serverId);
+                patientResult.put(serverId, this.getLastUpdateStatus(serverRequests == null ? noRequests
+                    : serverRequests));
+            }
+            result.put(patientId, patientResult);
+        }
+        return result;
+    }
 
-        OutgoingMatchRequest lastRequest =
-                this.matchingService.getLastOutgoingRequest(serverId, patientId);
-        OutgoingMatchRequest lastSuccessfulRequest =
-                this.matchingService.getLastSuccessfulOutgoingRequest(serverId, patientId);
+    private JSONObject getLastUpdateStatus(LastOutgoingRequests lastRequests)
+    {
+        JSONObject result = new JSONObject();
+        OutgoingMatchRequest lastRequest = lastRequests.getLastRequest();
+        OutgoingMatchRequest lastSuccessfulRequest = lastRequests.getLastSuccessfulRequest();
 
         result.put("lastSuccessfulMatchUpdateDate", this.getRequestDateForJSON(lastSuccessfulRequest));
         result.put("lastMatchUpdateDate", this.getRequestDateForJSON(lastRequest));
 
-        if (lastRequest != null && (!lastRequest.wasSent() || !lastRequest.gotValidReply())) {
+        // a valid reply implies that the request was sent, and can be checked without loading the stored payloads
+        if (lastRequest != null && !lastRequest.gotValidReply()) {
             result.put("lastMatchUpdateErrorCode", lastRequest.getRequestStatusCode());
             result.put("lastMatchUpdateError", lastRequest.getResponseJSON());
         }
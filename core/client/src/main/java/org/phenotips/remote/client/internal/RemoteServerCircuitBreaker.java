@@ -0,0 +1,139 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+/**
+ * Tracks the health of one remote server. After {@code failureThreshold} consecutive failures the circuit "opens" and
+ * all requests are rejected immediately for {@code openDurationMs}; after that a single probe request is let through
+ * ("half-open" state), and depending on its outcome the circuit either closes again or stays open for another period.
+ *
+ * @version $Id$
+ */
+public class RemoteServerCircuitBreaker
+{
+    private enum State
+    {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private final int failureThreshold;
+
+    private final long openDurationMs;
+
+    private State state = State.CLOSED;
+
+    private int consecutiveFailures;
+
+    private long openedTime;
+
+    /**
+     * @param failureThreshold number of consecutive failures after which the circuit opens, must be positive
+     * @param openDurationMs how long the circuit stays open before a probe request is allowed, in milliseconds
+     */
+    public RemoteServerCircuitBreaker(int failureThreshold, long openDurationMs)
+    {
+        this.failureThreshold = failureThreshold;
+        this.openDurationMs = openDurationMs;
+    }
+
+    /**
+     * @return the number of consecutive failures after which the circuit opens
+     */
+    public int getFailureThreshold()
+    {
+        return this.failureThreshold;
+    }
+
+    /**
+     * @return how long the circuit stays open before a probe request is allowed, in milliseconds
+     */
+    public long getOpenDurationMs()
+    {
+        return this.openDurationMs;
+    }
+
+    /**
+     * @param threshold a number of consecutive failures
+     * @param durationMs an open duration, in milliseconds
+     * @return {@code true} if this circuit breaker was created with these settings
+     */
+    public boolean hasSettings(int threshold, long durationMs)
+    {
+        return this.failureThreshold == threshold && this.openDurationMs == durationMs;
+    }
+
+    /**
+     * Checks if a request may be sent now. When this returns {@code true}, the caller must report the outcome of the
+     * request using either {@link #recordSuccess()} or {@link #recordFailure()}.
+     *
+     * @return {@code true} if the request may be sent, {@code false} if it should fail fast
+     */
+    public synchronized boolean allowRequest()
+    {
+        if (this.state == State.CLOSED) {
+            return true;
+        }
+        // when open, let exactly one probe request through once the open period is over; when half-open, a probe
+        // is already in flight, but if it never reported back within a whole period another probe is allowed
+        long now = System.currentTimeMillis();
+        if (now - this.openedTime >= this.openDurationMs) {
+            this.state = State.HALF_OPEN;
+            this.openedTime = now;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Records that a request allowed by {@link #allowRequest()} was not sent after all, e.g. because of the request
+     * rate limit. If it was the probe request, another probe is allowed right away instead of after a whole period.
+     */
+    public synchronized void recordNotSent()
+    {
+        if (this.state == State.HALF_OPEN) {
+            this.state = State.OPEN;
+            this.openedTime = System.currentTimeMillis() - this.openDurationMs;
+        }
+    }
+
+    /**
+     * Records a request which got a reply from the server, closing the circuit.
+     */
+    public synchronized void recordSuccess()
+    {
+        this.state = State.CLOSED;
+        this.consecutiveFailures = 0;
+    }
+
+    /**
+     * Records a request which failed because of the server (no reply, or a server error).
+     *
+     * @return {@code true} if this failure opened the circuit
+     */
+    public synchronized boolean recordFailure()
+    {
+        this.consecutiveFailures++;
+        if (this.state == State.HALF_OPEN
+            || (this.state == State.CLOSED && this.consecutiveFailures >= this.failureThreshold)) {
+            this.state = State.OPEN;
+            this.openedTime = System.currentTimeMillis();
+            return true;
+        }
+        return false;
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import java.io.IOException;
+
+/**
+ * Thrown while reading the reply of a remote server when it is larger than the maximum reply size configured for that
+ * server.
+ *
+ * @version $Id$
+ */
+public class ReplyTooLargeException extends IOException
+{
+    private static final long serialVersionUID = 6423145520487319402L;
+
+    /**
+     * @param maxSize the maximum accepted reply size, in bytes
+     */
+    public ReplyTooLargeException(long maxSize)
+    {
+        super("reply is larger than the maximum accepted size of " + maxSize + " bytes");
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import org.phenotips.data.Feature;
+import org.phenotips.data.Patient;
+import org.phenotips.data.similarity.PatientGenotype;
+import org.phenotips.data.similarity.genotype.DefaultPatientGenotype;
+import org.phenotips.remote.common.internal.CachingTermResolver;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Cheap check run on a remote patient before building a full similarity view, which is expensive, for it. Both parts
+ * of the local similarity score are zero for a remote patient which has no gene in common with the reference patient,
+ * and none of whose phenotypes shares an ancestor with any reference phenotype, other than the uninformative roots of
+ * the HPO: such patients can never reach a positive score threshold, and are not worth scoring.
+ *
+ * Terms are resolved through the term cache shared with the conversion of remote patients, which already resolved the
+ * terms of the checked patients, and ancestors are read from the {@value #ANCESTORS_FIELD} field of the terms, so the
+ * check normally does not query the vocabulary at all.
+ *
+ * The check is conservative: whenever a term can not be resolved the remote patient is considered a possible match.
+ *
+ * @version $Id$
+ */
+public class SimilarityPreFilter
+{
+    /** Ancestors shared by all phenotypes, which carry no information. */
+    private static final Set<String> UNINFORMATIVE_TERMS =
+        Collections.unmodifiableSet(new HashSet<>(Arrays.asList("HP:0000001", "HP:0000118")));
+
+    /** The indexed field holding the identifiers of all the ancestors of a term. */
+    private static final String ANCESTORS_FIELD = "term_category";
+
+    private final CachingTermResolver hpo;
+
+    private final Set<String> referenceAncestors;
+
+    private final Set<String> referenceGenes;
+
+    /** When some reference phenotypes can not be resolved, phenotypes can not be used to rule out matches. */
+    private final boolean checkPhenotypes;
+
+    /**
+     * @param reference the local patient the remote patients are matched against
+     * @param hpo the HPO term resolver, may be {@code null} in which case phenotypes are never used to rule out a match
+     */
+    public SimilarityPreFilter(Patient reference, CachingTermResolver hpo)
+    {
+        this.hpo = hpo;
+        this.referenceGenes = getGenes(reference);
+        this.referenceAncestors = new HashSet<>();
+        this.checkPhenotypes = (hpo != null) && this.collectAncestors(reference.getFeatures(),
+            this.referenceAncestors);
+    }
+
+    /**
+     * @param remotePatient a remote patient
+     * @return {@code false} if the remote patient is guaranteed to have a zero similarity score, {@code true} if it
+     *         may have a positive score
+     */
+    public boolean mayMatch(Patient remotePatient)
+    {
+        if (!this.checkPhenotypes) {
+            return true;
+        }
+        for (String gene : getGenes(remotePatient)) {
+            if (this.referenceGenes.contains(gene)) {
+                return true;
+            }
+        }
+        for (Feature feature : remotePatient.getFeatures()) {
+            VocabularyTerm term = this.hpo.getTerm(feature.getId());
+            if (term == null) {
+                return true;
+            }
+            for (String ancestor : getAncestorsAndSelf(term)) {
+                if (this.referenceAncestors.contains(ancestor)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code false} if one of the features could not be resolved
+     */
+    private boolean collectAncestors(Collection<? extends Feature> features, Set<String> ancestors)
+    {
+        for (Feature feature : features) {
+            VocabularyTerm term = this.hpo.getTerm(feature.getId());
+            if (term == null) {
+                return false;
+            }
+            ancestors.addAll(getAncestorsAndSelf(term));
+        }
+        ancestors.removeAll(UNINFORMATIVE_TERMS);
+        return true;
+    }
+
+    /**
+     * @return the identifiers of the term and of all its ancestors, read from the term itself when it lists them
+     */
+    private static Collection<String> getAncestorsAndSelf(VocabularyTerm term)
+    {
+        Set<String> result = new HashSet<>();
+        result.add(term.getId());
+        Object ancestors = term.get(ANCESTORS_FIELD);
+        if (ancestors instanceof Collection) {
+            for (Object ancestor : (Collection<?>) ancestors) {
+                result.add(String.valueOf(ancestor));
+            }
+        } else if (ancestors != null) {
+            result.add(String.valueOf(ancestors));
+        } else {
+            // not indexed with its ancestors, which have to be looked up
+            for (VocabularyTerm ancestor : term.getAncestorsAndSelf()) {
+                result.add(ancestor.getId());
+            }
+        }
+        return result;
+    }
+
+    private static Set<String> getGenes(Patient patient)
+    {
+        PatientGenotype genotype = new DefaultPatientGenotype(patient);
+        Set<String> genes = genotype.getGenes();
+        return (genes != null) ? genes : Collections.<String>emptySet();
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps the entity of a remote server reply so that reading more than a given number of bytes fails with a
+ * {@link ReplyTooLargeException}, instead of buffering an arbitrarily large reply in memory. Replies which declare a
+ * too large {@code Content-Length} are rejected before anything is read.
+ *
+ * @version $Id$
+ */
+public class SizeLimitedEntity extends HttpEntityWrapper
+{
+    private final long maxSize;
+
+    /**
+     * @param wrappedEntity the reply entity
+     * @param maxSize the maximum number of bytes that can be read from the entity
+     */
+    public SizeLimitedEntity(HttpEntity wrappedEntity, long maxSize)
+    {
+        super(wrappedEntity);
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public InputStream getContent() throws IOException
+    {
+        if (super.getContentLength() > this.maxSize) {
+            throw new ReplyTooLargeException(this.maxSize);
+        }
+        return new SizeLimitedInputStream(super.getContent(), this.maxSize);
+    }
+
+    @Override
+    public boolean isStreaming()
+    {
+        return true;
+    }
+
+    private static final class SizeLimitedInputStream extends FilterInputStream
+    {
+        private final long maxSize;
+
+        private long bytesRead;
+
+        SizeLimitedInputStream(InputStream in, long maxSize)
+        {
+            super(in);
+            this.maxSize = maxSize;
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            int result = super.read();
+            if (result != -1) {
+                this.count(1);
+            }
+            return result;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException
+        {
+            int result = super.read(b, off, len);
+            if (result > 0) {
+                this.count(result);
+            }
+            return result;
+        }
+
+        @Override
+        public long skip(long n) throws IOException
+        {
+            long result = super.skip(n);
+            this.count(result);
+            return result;
+        }
+
+        @Override
+        public boolean markSupported()
+        {
+            return false;
+        }
+
+        private void count(long n) throws ReplyTooLargeException
+        {
+            this.bytesRead += n;
+            if (this.bytesRead > this.maxSize) {
+                throw new ReplyTooLargeException(this.maxSize);
+            }
+        }
+    }
+}
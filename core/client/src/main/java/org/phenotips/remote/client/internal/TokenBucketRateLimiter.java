@@ -0,0 +1,81 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.internal;
+
+/**
+ * A simple token bucket: up to {@code capacity} requests can be sent in a burst, after which requests are allowed at a
+ * steady rate of {@code requestsPerMinute}. Callers never wait for a token: requests exceeding the rate are refused
+ * right away, so that no thread is blocked by a busy server.
+ *
+ * @version $Id$
+ */
+public class TokenBucketRateLimiter
+{
+    private static final double MS_IN_ONE_MINUTE = 60000.0;
+
+    private final int requestsPerMinute;
+
+    private final double capacity;
+
+    private final double tokensPerMs;
+
+    private double availableTokens;
+
+    private long lastRefillTime;
+
+    /**
+     * @param requestsPerMinute the steady request rate, must be positive
+     * @param capacity the maximum burst size, must be positive
+     */
+    public TokenBucketRateLimiter(int requestsPerMinute, int capacity)
+    {
+        this.requestsPerMinute = requestsPerMinute;
+        this.capacity = capacity;
+        this.tokensPerMs = requestsPerMinute / MS_IN_ONE_MINUTE;
+        this.availableTokens = capacity;
+        this.lastRefillTime = System.currentTimeMillis();
+    }
+
+    /**
+     * @return the steady request rate this bucket was created with
+     */
+    public int getRequestsPerMinute()
+    {
+        return this.requestsPerMinute;
+    }
+
+    /**
+     * Takes one token, if one is available.
+     *
+     * @return {@code true} if a request can be sent now, {@code false} if the rate is exceeded, in which case nothing
+     *         is taken
+     */
+    public synchronized boolean tryAcquire()
+    {
+        long now = System.currentTimeMillis();
+        this.availableTokens =
+            Math.min(this.capacity, this.availableTokens + (now - this.lastRefillTime) * this.tokensPerMs);
+        this.lastRefillTime = now;
+
+        if (this.availableTokens < 1) {
+            return false;
+        }
+        this.availableTokens -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.client.script;
+
+import org.phenotips.remote.client.BulkRematchingService;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+
+import java.util.Collection;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.json.JSONObject;
+
+/**
+ * Allows administrators (and scheduler jobs, e.g. for a nightly run) to control the bulk re-matching of all consented
+ * patients against remote servers.
+ *
+ * @version $Id$
+ */
+@Unstable
+@Component
+@Named("bulkRematching")
+@Singleton
+public class BulkRematchingScriptService implements ScriptService
+{
+    @Inject
+    private BulkRematchingService bulkRematchingService;
+
+    @Inject
+    private ContextualAuthorizationManager authorizationManager;
+
+    /**
+     * Starts (or resumes) re-matching all consented patients.
+     *
+     * @param remoteServerIds the servers to send the requests to
+     * @param skipIfMatchedWithinHours skip patients successfully matched against a server in this many last hours
+     * @param restart if {@code true}, start from the first patient instead of resuming a stopped run
+     * @return {@code true} if a new run was started, {@code false} if a run is in progress, the servers are not valid
+     *         or the current user is not an administrator
+     */
+    public boolean start(Collection<String> remoteServerIds, int skipIfMatchedWithinHours, boolean restart)
+    {
+        if (!this.authorizationManager.hasAccess(Right.ADMIN)) {
+            return false;
+        }
+        return this.bulkRematchingService.start(remoteServerIds, skipIfMatchedWithinHours, restart);
+    }
+
+    /**
+     * Stops the current run, keeping its position so that it can be resumed later.
+     */
+    public void stop()
+    {
+        if (this.authorizationManager.hasAccess(Right.ADMIN)) {
+            this.bulkRematchingService.stop();
+        }
+    }
+
+    /**
+     * @return the progress of the current or last run, or {@code null} if the current user is not an administrator
+     */
+    public JSONObject getStatus()
+    {
+        if (!this.authorizationManager.hasAccess(Right.ADMIN)) {
+            return null;
+        }
+        return this.bulkRematchingService.getStatus();
+    }
+}
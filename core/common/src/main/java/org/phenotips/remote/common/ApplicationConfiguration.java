@@ -52,6 +52,24 @@
 
     String CONFIGDOC_REMOTE_SERVER_LIMIT_IP = "limitAcceptedIPs";
 
+    String CONFIGDOC_REMOTE_MAX_CONNECTIONS = "maxConnections"; // max simultaneous connections to the remote server
+
+    String CONFIGDOC_REMOTE_MAX_REQUESTS_PER_MINUTE = "maxRequestsPerMinute"; // 0 means no limit
+
+    String CONFIGDOC_REMOTE_CIRCUIT_BREAKER_FAILURES = "circuitBreakerFailures"; // failures before failing fast
+
+    String CONFIGDOC_REMOTE_CIRCUIT_BREAKER_OPEN_SECONDS = "circuitBreakerOpenSeconds"; // time before probing again
+
+    String CONFIGDOC_REMOTE_CONNECT_TIMEOUT = "connectTimeout"; // seconds
+
+    String CONFIGDOC_REMOTE_SOCKET_TIMEOUT = "socketTimeout"; // seconds, max inactivity while waiting for the reply
+
+    String CONFIGDOC_REMOTE_TOTAL_TIMEOUT = "totalTimeout"; // seconds, max duration of the whole exchange
+
+    String CONFIGDOC_REMOTE_MAX_RESPONSE_SIZE = "maxResponseSize"; // megabytes
+
+    String CONFIGDOC_REMOTE_SCORE_THRESHOLD = "matchScoreThreshold"; // min local score of the matches which are kept
+
     /** Document which can be relied upon to exist at all times. Needed for the REST server to work */
     EntityReference ABSOLUTE_DOCUMENT_REFERENCE =
         new EntityReference("XWikiPreferences", EntityType.DOCUMENT, XWIKI_SPACE);
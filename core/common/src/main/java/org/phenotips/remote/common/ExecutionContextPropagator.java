@@ -0,0 +1,54 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.concurrent.Callable;
+
+/**
+ * Wraps tasks which are going to be executed on background threads so that they run inside an XWiki execution
+ * context equivalent to the one of the thread which created them. Without this, code which relies on the current
+ * {@code XWikiContext} (loading patients, reading the configuration, checking rights) fails on worker threads.
+ *
+ * @version $Id$
+ */
+@Role
+public interface ExecutionContextPropagator
+{
+    /**
+     * Wraps a task so that it runs with a copy of the calling thread's execution context, made when this method is
+     * called rather than when the task starts. If the calling thread has no execution context, the task will run with a
+     * freshly initialized one.
+     *
+     * @param task the task to wrap
+     * @param <T> the type of the task result
+     * @return a task which sets up the execution context, runs the original task, and cleans up afterwards
+     */
+    <T> Callable<T> wrap(Callable<T> task);
+
+    /**
+     * Wraps a task so that it runs with a copy of the calling thread's execution context, made when this method is
+     * called rather than when the task starts. If the calling thread has no execution context, the task will run with a
+     * freshly initialized one.
+     *
+     * @param task the task to wrap
+     * @return a task which sets up the execution context, runs the original task, and cleans up afterwards
+     */
+    Runnable wrap(Runnable task);
+}
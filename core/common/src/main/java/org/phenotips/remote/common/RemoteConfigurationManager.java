@@ -26,6 +26,15 @@
 import com.xpn.xwiki.XWikiException;
 import com.xpn.xwiki.objects.BaseObject;
 
+/**
+ * Legacy access to the raw {@code RemoteMatchingServiceConfiguration} objects, kept for backwards compatibility.
+ * The objects are loaded from the preferences document on every call; code which only reads the configuration
+ * should use the typed, cached {@link RemoteServerRegistry} instead.
+ *
+ * @version $Id$
+ * @deprecated use {@link RemoteServerRegistry} and {@link RemoteServerConfig}
+ */
+@Deprecated
 @Role
 public interface RemoteConfigurationManager
 {
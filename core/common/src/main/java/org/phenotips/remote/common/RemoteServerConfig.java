@@ -0,0 +1,228 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common;
+
+import org.xwiki.stability.Unstable;
+
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * The configuration of one remote matching server, read once from its {@code RemoteMatchingServiceConfiguration}
+ * object. Instances are immutable; numeric settings which are not configured are {@code 0}, and callers apply their own
+ * defaults.
+ *
+ * @version $Id$
+ */
+@Unstable
+public final class RemoteServerConfig
+{
+    private final String serverId;
+
+    private final String name;
+
+    private final String baseURL;
+
+    private final String remoteAuthToken;
+
+    private final String localAuthToken;
+
+    private final boolean searchMatches;
+
+    private final boolean limitAcceptedIPs;
+
+    private final int maxConnections;
+
+    private final int maxRequestsPerMinute;
+
+    private final int circuitBreakerFailures;
+
+    private final int circuitBreakerOpenSeconds;
+
+    private final int connectTimeout;
+
+    private final int socketTimeout;
+
+    private final int totalTimeout;
+
+    private final int maxResponseSize;
+
+    private final Double matchScoreThreshold;
+
+    /**
+     * @param configurationObject the {@code RemoteMatchingServiceConfiguration} object to read the configuration from
+     */
+    public RemoteServerConfig(BaseObject configurationObject)
+    {
+        this.serverId = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_ID);
+        this.name = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_NAME);
+        this.baseURL = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_BASE_URL_FIELD);
+        this.remoteAuthToken = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_KEY_FIELD);
+        this.localAuthToken = configurationObject.getStringValue(ApplicationConfiguration.CONFIGDOC_LOCAL_KEY_FIELD);
+        this.searchMatches =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_SEARCH_MATCHES) == 1;
+        this.limitAcceptedIPs =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_LIMIT_IP) == 1;
+        this.maxConnections =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_MAX_CONNECTIONS);
+        this.maxRequestsPerMinute =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_MAX_REQUESTS_PER_MINUTE);
+        this.circuitBreakerFailures =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_CIRCUIT_BREAKER_FAILURES);
+        this.circuitBreakerOpenSeconds =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_CIRCUIT_BREAKER_OPEN_SECONDS);
+        this.connectTimeout =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_CONNECT_TIMEOUT);
+        this.socketTimeout = configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SOCKET_TIMEOUT);
+        this.totalTimeout = configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_TOTAL_TIMEOUT);
+        this.maxResponseSize =
+            configurationObject.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_MAX_RESPONSE_SIZE);
+        this.matchScoreThreshold =
+            (configurationObject.getField(ApplicationConfiguration.CONFIGDOC_REMOTE_SCORE_THRESHOLD) == null) ? null
+                : configurationObject.getDoubleValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SCORE_THRESHOLD);
+    }
+
+    /**
+     * @return the identifier of the server
+     */
+    public String getServerId()
+    {
+        return this.serverId;
+    }
+
+    /**
+     * @return the human readable name of the server, or its identifier if no name is configured
+     */
+    public String getName()
+    {
+        return (this.name == null || this.name.isEmpty()) ? this.serverId : this.name;
+    }
+
+    /**
+     * @return the base URL of the server's API
+     */
+    public String getBaseURL()
+    {
+        return this.baseURL;
+    }
+
+    /**
+     * @return the token sent to the server with our requests
+     */
+    public String getRemoteAuthToken()
+    {
+        return this.remoteAuthToken;
+    }
+
+    /**
+     * @return the token the server must send with its requests
+     */
+    public String getLocalAuthToken()
+    {
+        return this.localAuthToken;
+    }
+
+    /**
+     * @return whether the server is used for finding matches for local patients
+     */
+    public boolean isSearchMatches()
+    {
+        return this.searchMatches;
+    }
+
+    /**
+     * @return whether requests from the server are only accepted from the address of its base URL
+     */
+    public boolean isLimitAcceptedIPs()
+    {
+        return this.limitAcceptedIPs;
+    }
+
+    /**
+     * @return the maximum number of simultaneous connections to the server, {@code 0} if not configured
+     */
+    public int getMaxConnections()
+    {
+        return this.maxConnections;
+    }
+
+    /**
+     * @return the maximum number of requests sent to the server per minute, {@code 0} for no limit
+     */
+    public int getMaxRequestsPerMinute()
+    {
+        return this.maxRequestsPerMinute;
+    }
+
+    /**
+     * @return the number of consecutive failures after which the server is considered unavailable, {@code 0} if not
+     *         configured
+     */
+    public int getCircuitBreakerFailures()
+    {
+        return this.circuitBreakerFailures;
+    }
+
+    /**
+     * @return how long an unavailable server is not contacted, in seconds, {@code 0} if not configured
+     */
+    public int getCircuitBreakerOpenSeconds()
+    {
+        return this.circuitBreakerOpenSeconds;
+    }
+
+    /**
+     * @return the connection timeout, in seconds, {@code 0} if not configured
+     */
+    public int getConnectTimeout()
+    {
+        return this.connectTimeout;
+    }
+
+    /**
+     * @return the maximum time without receiving data from the server, in seconds, {@code 0} if not configured
+     */
+    public int getSocketTimeout()
+    {
+        return this.socketTimeout;
+    }
+
+    /**
+     * @return the maximum duration of a request, in seconds, {@code 0} if not configured
+     */
+    public int getTotalTimeout()
+    {
+        return this.totalTimeout;
+    }
+
+    /**
+     * @return the maximum size of a reply, in megabytes, {@code 0} if not configured
+     */
+    public int getMaxResponseSize()
+    {
+        return this.maxResponseSize;
+    }
+
+    /**
+     * @return the minimum local score of the matches found by the server which are kept, {@code null} if not
+     *         configured
+     */
+    public Double getMatchScoreThreshold()
+    {
+        return this.matchScoreThreshold;
+    }
+}
@@ -0,0 +1,73 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common;
+
+import org.xwiki.component.annotation.Role;
+import org.xwiki.stability.Unstable;
+
+import java.util.List;
+
+/**
+ * Gives access to the configurations of the remote matching servers. The configurations are read once from the
+ * preferences document, and read again only when that document changes, so lookups never access XWiki documents.
+ *
+ * @version $Id$
+ */
+@Unstable
+@Role
+public interface RemoteServerRegistry
+{
+    /**
+     * @return the configurations of all the remote servers, in the order in which they are configured
+     */
+    List<RemoteServerConfig> getServers();
+
+    /**
+     * @param serverId the identifier of a server, case insensitive
+     * @return the configuration of the server, or {@code null} if no such server is configured
+     */
+    RemoteServerConfig getServer(String serverId);
+
+    /**
+     * @param baseURL the base URL of a server, case insensitive
+     * @return the configuration of the first server with this URL, or {@code null} if no such server is configured
+     */
+    RemoteServerConfig getServerByBaseURL(String baseURL);
+
+    /**
+     * @param localAuthToken the token sent by a server, case insensitive
+     * @return the configuration of the first server with this token, or {@code null} if no such server is configured
+     */
+    RemoteServerConfig getServerByToken(String localAuthToken);
+
+    /**
+     * Authenticates an incoming request. A server which limits the accepted IPs only accepts requests from the address
+     * of its base URL; these addresses are resolved in advance, and periodically refreshed.
+     *
+     * @param remoteIP the address the request was sent from
+     * @param providedToken the token sent with the request
+     * @return the configuration of the server which sent the request, or {@code null} if the request is not accepted
+     */
+    RemoteServerConfig authenticate(String remoteIP, String providedToken);
+
+    /**
+     * Reads the configurations again from the preferences document, e.g. after it was changed, and replaces all the
+     * configurations at once. Host names are resolved in the background afterwards, so this never waits for DNS.
+     */
+    void reload();
+}
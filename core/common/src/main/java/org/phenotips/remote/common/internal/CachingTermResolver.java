@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal;
+
+import org.phenotips.vocabulary.Vocabulary;
+import org.phenotips.vocabulary.VocabularyTerm;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.lang3.StringUtils;
+import org.json.JSONObject;
+
+/**
+ * Resolves term identifiers using a vocabulary, remembering the result of recent lookups. Remote patients use the same
+ * few thousand terms over and over, and each vocabulary lookup is a Solr query, so this avoids most queries when
+ * converting remote patients. Unknown identifiers are remembered as well, since remote servers which send unsupported
+ * terms tend to send them for all their patients. The vocabulary version is checked every minute, and everything
+ * remembered is forgotten once it changes, i.e. after the vocabulary has been reindexed.
+ *
+ * @version $Id$
+ */
+public class CachingTermResolver
+{
+    private static final long VERSION_CHECK_INTERVAL_MS = 60000;
+
+    private final Vocabulary vocabulary;
+
+    private final ExpiringCache<String, VocabularyTerm> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /** When the vocabulary version should be checked next; {@code 0} until it was checked once. */
+    private final AtomicLong nextVersionCheck = new AtomicLong();
+
+    private volatile String vocabularyVersion;
+
+    /**
+     * @param vocabulary the vocabulary used to resolve terms not found in the cache, may be {@code null} in which case
+     *            no term is ever resolved
+     * @param maxSize the maximum number of identifiers remembered
+     * @param timeToLiveMs how long the result of a lookup is remembered, in milliseconds
+     */
+    public CachingTermResolver(Vocabulary vocabulary, int maxSize, long timeToLiveMs)
+    {
+        this.vocabulary = vocabulary;
+        this.cache = new ExpiringCache<>(maxSize, timeToLiveMs);
+    }
+
+    /**
+     * @param id a term identifier
+     * @return the corresponding term, or {@code null} if the vocabulary does not know the identifier
+     */
+    public VocabularyTerm getTerm(String id)
+    {
+        if (this.vocabulary == null || id == null) {
+            return null;
+        }
+        this.checkVersion();
+        VocabularyTerm term = this.cache.get(id);
+        if (term != null || this.cache.containsKey(id)) {
+            this.hits.incrementAndGet();
+            return term;
+        }
+        this.misses.incrementAndGet();
+        term = this.vocabulary.getTerm(id);
+        this.cache.put(id, term);
+        return term;
+    }
+
+    /**
+     * Resolves, using one vocabulary query, all the given identifiers which are not already cached, so that later calls
+     * to {@link #getTerm(String)} for these identifiers are answered from the cache. Vocabularies which store their
+     * identifiers without the prefix used in requests, e.g. {@code MIM:}, are supported. Identifiers which are not
+     * found are not cached, so that they are still looked up individually, since single term lookups also support
+     * alternative identifiers.
+     *
+     * @param ids the term identifiers to resolve
+     */
+    public void prefetch(Collection<String> ids)
+    {
+        if (this.vocabulary == null || ids == null || ids.isEmpty()) {
+            return;
+        }
+        this.checkVersion();
+        Set<String> missing = new HashSet<>();
+        // returned term identifier -> requested identifier
+        Map<String, String> requestedIds = new HashMap<>();
+        for (String id : ids) {
+            if (id != null && !this.cache.containsKey(id)) {
+                missing.add(id);
+                requestedIds.put(id, id);
+                if (id.indexOf(':') > 0) {
+                    requestedIds.put(StringUtils.substringAfter(id, ":"), id);
+                }
+            }
+        }
+        if (missing.isEmpty()) {
+            return;
+        }
+        this.misses.addAndGet(missing.size());
+        Set<VocabularyTerm> terms = this.vocabulary.getTerms(missing);
+        if (terms == null) {
+            return;
+        }
+        for (VocabularyTerm term : terms) {
+            String requestedId = (term != null) ? requestedIds.get(term.getId()) : null;
+            if (requestedId != null) {
+                this.cache.put(requestedId, term);
+            }
+        }
+    }
+
+    /** Forgets all remembered lookups, e.g. after the vocabulary has been reindexed. */
+    public void invalidateAll()
+    {
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Forgets all remembered lookups if the vocabulary was reindexed since the last check. Only one thread checks at a
+     * time, and the others go on using the cache meanwhile.
+     */
+    private void checkVersion()
+    {
+        long now = System.currentTimeMillis();
+        long next = this.nextVersionCheck.get();
+        if (now < next || !this.nextVersionCheck.compareAndSet(next, now + VERSION_CHECK_INTERVAL_MS)) {
+            return;
+        }
+        String version = this.vocabulary.getVersion();
+        if (next != 0 && !StringUtils.equals(version, this.vocabularyVersion)) {
+            this.invalidateAll();
+        }
+        this.vocabularyVersion = version;
+    }
+
+    /**
+     * @return the number of lookups answered from the cache
+     */
+    public long getHits()
+    {
+        return this.hits.get();
+    }
+
+    /**
+     * @return the number of lookups which had to query the vocabulary
+     */
+    public long getMisses()
+    {
+        return this.misses.get();
+    }
+
+    /**
+     * @return the number of hits and misses, and the number of remembered identifiers
+     */
+    public JSONObject getStatistics()
+    {
+        JSONObject result = new JSONObject();
+        result.put("hits", this.getHits());
+        result.put("misses", this.getMisses());
+        result.put("size", this.cache.size());
+        return result;
+    }
+}
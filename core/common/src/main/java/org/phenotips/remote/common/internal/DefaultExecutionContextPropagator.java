@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal;
+
+import org.phenotips.remote.common.ExecutionContextPropagator;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.context.Execution;
+import org.xwiki.context.ExecutionContext;
+import org.xwiki.context.ExecutionContextException;
+import org.xwiki.context.ExecutionContextManager;
+
+import java.util.concurrent.Callable;
+
+import javax.inject.Inject;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.XWikiContext;
+
+/**
+ * Default implementation of {@link ExecutionContextPropagator}: the worker thread gets a freshly initialized execution
+ * context holding a clone of the caller's {@link XWikiContext} (so that the current wiki, user and request-related
+ * settings are the same, but the two threads do not share a mutable context object). The clone is made on the caller
+ * thread when the task is wrapped, since the caller may change or release its context while the task is queued.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultExecutionContextPropagator implements ExecutionContextPropagator
+{
+    private static final String XWIKI_CONTEXT_KEY = "xwikicontext";
+
+    @Inject
+    private Execution execution;
+
+    @Inject
+    private ExecutionContextManager executionContextManager;
+
+    @Override
+    public <T> Callable<T> wrap(final Callable<T> task)
+    {
+        final XWikiContext workerContext = this.cloneCurrentXWikiContext();
+        return new Callable<T>()
+        {
+            @Override
+            public T call() throws Exception
+            {
+                initializeContext(workerContext);
+                try {
+                    return task.call();
+                } finally {
+                    DefaultExecutionContextPropagator.this.execution.removeContext();
+                }
+            }
+        };
+    }
+
+    @Override
+    public Runnable wrap(final Runnable task)
+    {
+        final XWikiContext workerContext = this.cloneCurrentXWikiContext();
+        return new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try {
+                    initializeContext(workerContext);
+                } catch (ExecutionContextException ex) {
+                    throw new IllegalStateException("Failed to initialize the execution context", ex);
+                }
+                try {
+                    task.run();
+                } finally {
+                    DefaultExecutionContextPropagator.this.execution.removeContext();
+                }
+            }
+        };
+    }
+
+    private XWikiContext cloneCurrentXWikiContext()
+    {
+        ExecutionContext current = this.execution.getContext();
+        XWikiContext xcontext = (current == null) ? null : (XWikiContext) current.getProperty(XWIKI_CONTEXT_KEY);
+        return (xcontext == null) ? null : xcontext.clone();
+    }
+
+    private void initializeContext(XWikiContext workerContext) throws ExecutionContextException
+    {
+        ExecutionContext context = new ExecutionContext();
+        // set before initializing, so that the initializers do not replace it with a stub context
+        if (workerContext != null) {
+            context.setProperty(XWIKI_CONTEXT_KEY, workerContext);
+        }
+        this.execution.setContext(context);
+        this.executionContextManager.initialize(context);
+    }
+}
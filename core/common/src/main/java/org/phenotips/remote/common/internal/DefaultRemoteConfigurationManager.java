@@ -19,13 +19,12 @@
 
 import org.phenotips.remote.common.ApplicationConfiguration;
 import org.phenotips.remote.common.RemoteConfigurationManager;
+import org.phenotips.remote.common.RemoteServerConfig;
+import org.phenotips.remote.common.RemoteServerRegistry;
 
 import org.xwiki.component.annotation.Component;
 
-import java.net.InetAddress;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 
@@ -41,6 +40,13 @@
 import com.xpn.xwiki.doc.XWikiDocument;
 import com.xpn.xwiki.objects.BaseObject;
 
+/**
+ * Finds the requested servers using the {@link RemoteServerRegistry}, and only then loads their configuration objects
+ * from the preferences document, since the registry only holds the typed, immutable configurations.
+ *
+ * @version $Id$
+ */
+@Deprecated
 @Singleton
 @Component
 public class DefaultRemoteConfigurationManager implements RemoteConfigurationManager
@@ -48,6 +54,9 @@ public class DefaultRemoteConfigurationManager implements RemoteConfigurationMan
     @Inject
     private Logger logger;
 
+    @Inject
+    private RemoteServerRegistry registry;
+
     @Override
     public List<BaseObject> getListOfRemotes(XWikiContext context)
     {
@@ -55,44 +64,36 @@ public List<BaseObject> getListOfRemotes(XWikiContext context)
         try {
             XWikiDocument prefsDoc =
                 context.getWiki().getDocument(ApplicationConfiguration.XWIKI_PREFERENCES_DOCUMENT_REFERENCE, context);
-
             remotes = prefsDoc.getXObjects(ApplicationConfiguration.REMOTE_CONFIGURATION_OBJECT_REFERENCE);
         } catch (Exception ex) {
             this.logger.error("Remote matching admin section is absent or empty - can not process request: [{}] {}",
                 ex.getMessage(), ex);
         }
-
         if (remotes == null) {
             return Collections.emptyList();
-        } else {
-            return remotes;
         }
+        List<BaseObject> result = new ArrayList<>(remotes.size());
+        for (BaseObject remote : remotes) {
+            if (remote != null) {
+                result.add(remote);
+            }
+        }
+        return result;
     }
 
     @Override
     public BaseObject getRemoteConfiguration(String baseURL, XWiki wiki, XWikiContext context)
         throws XWikiException
     {
-        XWikiDocument configurationsDoc =
-            wiki.getDocument(ApplicationConfiguration.XWIKI_PREFERENCES_DOCUMENT_REFERENCE, context);
-        if (configurationsDoc == null) {
-            this.logger.error("Could not find configurations document");
-        }
-        List<BaseObject> configurations =
-            configurationsDoc.getXObjects(ApplicationConfiguration.REMOTE_CONFIGURATION_OBJECT_REFERENCE);
-        for (BaseObject remote : configurations) {
-            if (remote == null) {
-                continue;
-            }
-            String url = remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_BASE_URL_FIELD);
-            if (StringUtils.equalsIgnoreCase(url, baseURL)) {
-                this.logger.info("Matched configuration with URL: " + url);
-                return remote;
-            }
+        RemoteServerConfig server = this.registry.getServerByBaseURL(baseURL);
+        BaseObject remote = (server == null) ? null : this.getConfigurationObject(server, context);
+        if (remote != null) {
+            this.logger.info("Matched configuration with URL: " + server.getBaseURL());
+            return remote;
         }
         this.logger.error(
             "Could not find any remote configuration objects or no match was found. Configurations list size: "
-                + configurations.size());
+                + this.registry.getServers().size());
         // FIXME. Not exactly true.
         throw new XWikiException();
     }
@@ -102,57 +103,11 @@ public BaseObject getRemoteConfigurationGivenRemoteIPAndToken(String remoteIP, S
         XWikiContext context)
     {
         try {
-            List<BaseObject> remotes = getListOfRemotes(context);
-            if (remotes == null) {
-                return null;
-            }
-            for (BaseObject remote : remotes) {
-                if (remote == null) {
-                    continue;
-                }
-
-                String configuredToken = remote.getStringValue(ApplicationConfiguration.CONFIGDOC_LOCAL_KEY_FIELD);
-
-                String remoteServerName = remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_NAME);
-                if (StringUtils.isEmpty(remoteServerName)) {
-                    remoteServerName = remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_ID);
-                }
-
-                boolean limitIPs = (remote.getIntValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_LIMIT_IP) == 1);
-
-                if (limitIPs) {
-                    String configuredURL =
-                        remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_BASE_URL_FIELD);
-                    try {
-                        String configuredIP = InetAddress.getByName(new URL(configuredURL).getHost()).getHostAddress();
-                        if (!StringUtils.equalsIgnoreCase(remoteIP, configuredIP)) {
-                            continue;
-                        }
-                    } catch (MalformedURLException ex) {
-                        this.logger.error(
-                            "One of the configured remote matching servers has an incorrectly formatted URL [{}]: {}",
-                            configuredURL, ex.getMessage());
-                    } catch (UnknownHostException ex) {
-                        this.logger.error(
-                            "One of the configured remote matching server URLs has no valid DNS record [{}]: {}",
-                            configuredURL, ex.getMessage());
-                    }
-
-                    if (!StringUtils.equalsIgnoreCase(providedToken, configuredToken)) {
-                        this.logger.error("Remote server token validation failed for server [{}]: Provided: {}",
-                            remoteServerName, providedToken);
-                        return null;
-                    }
-                    this.logger.error("Remote server IP and token validated OK for server [{}] (remote IP {})",
-                        remoteServerName, remoteIP);
-                    return remote;
-                } else {
-                    if (StringUtils.equalsIgnoreCase(providedToken, configuredToken)) {
-                        this.logger.error("Remote server token validated OK for server [{}] (remote IP {})",
-                            remoteServerName, remoteIP);
-                        return remote;
-                    }
-                }
+            RemoteServerConfig remote = this.registry.authenticate(remoteIP, providedToken);
+            if (remote != null) {
+                this.logger.error("Remote server token validated OK for server [{}] (remote IP {})",
+                    remote.getName(), remoteIP);
+                return this.getConfigurationObject(remote, context);
             }
         } catch (Exception ex) {
             this.logger.warn("Error while getting server info for IP [{}]: [{}] {}", remoteIP, ex.getMessage(), ex);
@@ -164,25 +119,21 @@ public BaseObject getRemoteConfigurationGivenRemoteIPAndToken(String remoteIP, S
     @Override
     public BaseObject getRemoteConfigurationGivenRemoteServerID(String remoteServerID, XWikiContext context)
     {
-        try {
-            List<BaseObject> remotes = this.getListOfRemotes(context);
-            if (remotes == null) {
-                return null;
-            }
-            for (BaseObject remote : remotes) {
-                if (remote == null) {
-                    continue;
-                }
-                String configuredServerId = remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_ID);
-                if (StringUtils.equalsIgnoreCase(remoteServerID, configuredServerId)) {
-                    return remote;
-                }
+        RemoteServerConfig server = this.registry.getServer(remoteServerID);
+        return (server == null) ? null : this.getConfigurationObject(server, context);
+    }
+
+    /**
+     * @return the configuration object of the given server, {@code null} if it was removed in the meantime
+     */
+    private BaseObject getConfigurationObject(RemoteServerConfig server, XWikiContext context)
+    {
+        for (BaseObject remote : this.getListOfRemotes(context)) {
+            if (StringUtils.equals(server.getServerId(),
+                remote.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_ID))) {
+                return remote;
             }
-        } catch (Exception ex) {
-            this.logger.error("Error while getting server info for serverID [{}]: [{}] {}",
-                remoteServerID, ex.getMessage(), ex);
         }
         return null;
     }
-
 }
@@ -0,0 +1,309 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal;
+
+import org.phenotips.remote.common.ApplicationConfiguration;
+import org.phenotips.remote.common.RemoteServerConfig;
+import org.phenotips.remote.common.RemoteServerRegistry;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.inject.Inject;
+import javax.inject.Provider;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.XWikiContext;
+import com.xpn.xwiki.doc.XWikiDocument;
+import com.xpn.xwiki.objects.BaseObject;
+
+/**
+ * Keeps an immutable snapshot of the remote server configurations, built the first time it is needed and replaced as a
+ * whole when the preferences document changes, so that readers always see a consistent set of servers. The hosts of
+ * the IP limited servers are never resolved by the threads reading or reloading the configurations, but in the
+ * background, right after each reload and then periodically; meanwhile, the addresses known from the previous snapshot
+ * are used, and hosts which were never resolved match no remote IP.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultRemoteServerRegistry implements RemoteServerRegistry, Initializable, Disposable
+{
+    /** How often the addresses of the remote servers are resolved again, in case they changed. */
+    private static final long DNS_REFRESH_MINUTES = 10;
+
+    /** The address of hosts not resolved yet, which matches no remote IP. */
+    private static final String UNRESOLVED = "";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private Provider<XWikiContext> contextProvider;
+
+    /** The current configurations, {@code null} until first needed. */
+    private final AtomicReference<Snapshot> snapshot = new AtomicReference<>();
+
+    private ScheduledExecutorService dnsRefresher;
+
+    @Override
+    public void initialize()
+    {
+        this.dnsRefresher = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-dns-refresh-%d").daemon(true).build());
+        this.dnsRefresher.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                refreshResolvedHosts();
+            }
+        }, DNS_REFRESH_MINUTES, DNS_REFRESH_MINUTES, TimeUnit.MINUTES);
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.dnsRefresher.shutdownNow();
+    }
+
+    @Override
+    public List<RemoteServerConfig> getServers()
+    {
+        return this.getSnapshot().servers;
+    }
+
+    @Override
+    public RemoteServerConfig getServer(String serverId)
+    {
+        return this.getSnapshot().serversById.get(getKey(serverId));
+    }
+
+    @Override
+    public RemoteServerConfig getServerByBaseURL(String baseURL)
+    {
+        return this.getSnapshot().serversByBaseURL.get(getKey(baseURL));
+    }
+
+    @Override
+    public RemoteServerConfig getServerByToken(String localAuthToken)
+    {
+        return this.getSnapshot().serversByToken.get(getKey(localAuthToken));
+    }
+
+    @Override
+    public RemoteServerConfig authenticate(String remoteIP, String providedToken)
+    {
+        Snapshot current = this.getSnapshot();
+        return current.authenticationIndex.authenticate(remoteIP, providedToken, current.resolvedHosts);
+    }
+
+    @Override
+    public void reload()
+    {
+        List<RemoteServerConfig> servers = this.loadServers();
+        if (servers != null) {
+            this.snapshot.set(this.createSnapshot(servers, this.snapshot.get()));
+            this.scheduleResolution();
+        }
+    }
+
+    private Snapshot getSnapshot()
+    {
+        Snapshot current = this.snapshot.get();
+        if (current == null) {
+            synchronized (this) {
+                current = this.snapshot.get();
+                if (current == null) {
+                    List<RemoteServerConfig> servers = this.loadServers();
+                    if (servers == null) {
+                        // not remembered, so that the configurations are read again the next time
+                        return this.createSnapshot(Collections.<RemoteServerConfig>emptyList(), null);
+                    }
+                    current = this.createSnapshot(servers, null);
+                    this.snapshot.set(current);
+                    this.scheduleResolution();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * @return the configured servers, or {@code null} if the preferences document could not be read
+     */
+    private List<RemoteServerConfig> loadServers()
+    {
+        try {
+            XWikiContext context = this.contextProvider.get();
+            XWikiDocument prefsDoc =
+                context.getWiki().getDocument(ApplicationConfiguration.XWIKI_PREFERENCES_DOCUMENT_REFERENCE, context);
+            List<BaseObject> remotes =
+                prefsDoc.getXObjects(ApplicationConfiguration.REMOTE_CONFIGURATION_OBJECT_REFERENCE);
+            List<RemoteServerConfig> servers = new ArrayList<>();
+            if (remotes != null) {
+                for (BaseObject remote : remotes) {
+                    if (remote != null) {
+                        servers.add(new RemoteServerConfig(remote));
+                    }
+                }
+            }
+            return servers;
+        } catch (Exception ex) {
+            this.logger.error("Remote matching admin section is absent or empty - can not process request: [{}] {}",
+                ex.getMessage(), ex);
+            return null;
+        }
+    }
+
+    /**
+     * Creates a snapshot of the given configurations, reusing the addresses resolved for the previous snapshot; the
+     * other hosts are {@link #UNRESOLVED} until the next {@link #scheduleResolution() resolution}.
+     */
+    private Snapshot createSnapshot(List<RemoteServerConfig> servers, Snapshot previous)
+    {
+        RemoteServerAuthenticationIndex index = new RemoteServerAuthenticationIndex(servers);
+        Map<String, String> resolved = new HashMap<>();
+        for (String host : index.getHosts()) {
+            String address = (previous == null) ? null : previous.resolvedHosts.get(host);
+            resolved.put(host, (address == null) ? UNRESOLVED : address);
+        }
+        return new Snapshot(servers, index, Collections.unmodifiableMap(resolved));
+    }
+
+    private void scheduleResolution()
+    {
+        try {
+            this.dnsRefresher.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    refreshResolvedHosts();
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            // shutting down
+        }
+    }
+
+    private void refreshResolvedHosts()
+    {
+        Snapshot current = this.snapshot.get();
+        if (current == null) {
+            return;
+        }
+        Map<String, String> resolved = this.resolveHosts(current.authenticationIndex.getHosts());
+        // a reload in the meantime scheduled another resolution for the new configurations
+        this.snapshot.compareAndSet(current, current.withResolvedHosts(resolved));
+    }
+
+    /**
+     * Resolves the addresses of the hosts from which IP limited servers are accepted, so that this is not done for
+     * every request. Hosts which can't be resolved are left out, and accept any remote IP.
+     */
+    private Map<String, String> resolveHosts(Set<String> hosts)
+    {
+        Map<String, String> resolved = new HashMap<>();
+        for (String host : hosts) {
+            try {
+                resolved.put(host, InetAddress.getByName(host).getHostAddress());
+            } catch (UnknownHostException ex) {
+                this.logger.error("One of the configured remote matching server URLs has no valid DNS record [{}]: {}",
+                    host, ex.getMessage());
+            }
+        }
+        return Collections.unmodifiableMap(resolved);
+    }
+
+    private static String getKey(String value)
+    {
+        return (value == null) ? null : value.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Snapshot
+    {
+        private final List<RemoteServerConfig> servers;
+
+        private final Map<String, RemoteServerConfig> serversById = new HashMap<>();
+
+        private final Map<String, RemoteServerConfig> serversByBaseURL = new HashMap<>();
+
+        private final Map<String, RemoteServerConfig> serversByToken = new HashMap<>();
+
+        private final RemoteServerAuthenticationIndex authenticationIndex;
+
+        private final Map<String, String> resolvedHosts;
+
+        Snapshot(List<RemoteServerConfig> servers, RemoteServerAuthenticationIndex authenticationIndex,
+            Map<String, String> resolvedHosts)
+        {
+            this.servers = Collections.unmodifiableList(new ArrayList<>(servers));
+            this.authenticationIndex = authenticationIndex;
+            this.resolvedHosts = resolvedHosts;
+            for (RemoteServerConfig server : this.servers) {
+                // the first configuration wins, as when the configurations are searched in order
+                putIfAbsent(this.serversById, server.getServerId(), server);
+                putIfAbsent(this.serversByBaseURL, server.getBaseURL(), server);
+                putIfAbsent(this.serversByToken, server.getLocalAuthToken(), server);
+            }
+        }
+
+        private Snapshot(Snapshot original, Map<String, String> resolvedHosts)
+        {
+            this.servers = original.servers;
+            this.serversById.putAll(original.serversById);
+            this.serversByBaseURL.putAll(original.serversByBaseURL);
+            this.serversByToken.putAll(original.serversByToken);
+            this.authenticationIndex = original.authenticationIndex;
+            this.resolvedHosts = resolvedHosts;
+        }
+
+        Snapshot withResolvedHosts(Map<String, String> newResolvedHosts)
+        {
+            return new Snapshot(this, newResolvedHosts);
+        }
+
+        private static void putIfAbsent(Map<String, RemoteServerConfig> map, String key, RemoteServerConfig server)
+        {
+            if (key != null && !map.containsKey(getKey(key))) {
+                map.put(getKey(key), server);
+            }
+        }
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A thread-safe in-memory cache, holding about a given number of entries, each of which expires a fixed time after it
+ * was added. Lookups never block each other, since entries are kept in a concurrent map. When the cache gets full, the
+ * expired entries and then the least recently used ones are evicted in one go, until a tenth of the space is free, so
+ * that the cost of evicting is shared by many insertions.
+ *
+ * @param <K> the type of the keys
+ * @param <V> the type of the cached values
+ * @version $Id$
+ */
+public class ExpiringCache<K, V>
+{
+    /** Share of the maximum size freed at once when the cache is full. */
+    private static final int EVICTED_PERCENT = 10;
+
+    private static final int PERCENT = 100;
+
+    private final int maxSize;
+
+    private final long timeToLiveMs;
+
+    private final ConcurrentMap<K, Entry<V>> entries = new ConcurrentHashMap<>();
+
+    /** Only one thread evicts at a time; the others go on, since the cache may briefly hold a few extra entries. */
+    private final Lock evictionLock = new ReentrantLock();
+
+    /**
+     * @param maxSize the maximum number of entries kept
+     * @param timeToLiveMs how long an entry stays valid after it was added, in milliseconds
+     */
+    public ExpiringCache(int maxSize, long timeToLiveMs)
+    {
+        this.maxSize = maxSize;
+        this.timeToLiveMs = timeToLiveMs;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return the cached value, or {@code null} if there is no valid entry for the key
+     */
+    public V get(K key)
+    {
+        Entry<V> entry = this.getEntry(key);
+        return (entry == null) ? null : entry.value;
+    }
+
+    /**
+     * @param key the key to look up
+     * @return {@code true} if there is a valid entry for the key, even if the cached value is {@code null}
+     */
+    public boolean containsKey(K key)
+    {
+        return this.getEntry(key) != null;
+    }
+
+    /**
+     * @param key the key of the entry
+     * @param value the value to cache, may be {@code null}
+     */
+    public void put(K key, V value)
+    {
+        this.entries.put(key, new Entry<>(value, System.currentTimeMillis() + this.timeToLiveMs));
+        if (this.entries.size() > this.maxSize) {
+            this.evict();
+        }
+    }
+
+    /**
+     * @param key the key of the entry to remove
+     */
+    public void invalidate(K key)
+    {
+        this.entries.remove(key);
+    }
+
+    /** Removes all entries. */
+    public void invalidateAll()
+    {
+        this.entries.clear();
+    }
+
+    /**
+     * @return the number of valid entries
+     */
+    public int size()
+    {
+        this.removeExpired();
+        return this.entries.size();
+    }
+
+    /**
+     * @return the maximum number of entries kept
+     */
+    public int getMaxSize()
+    {
+        return this.maxSize;
+    }
+
+    private Entry<V> getEntry(K key)
+    {
+        Entry<V> entry = this.entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        if (entry.isExpired(now)) {
+            this.entries.remove(key, entry);
+            return null;
+        }
+        entry.touch(now);
+        return entry;
+    }
+
+    private void removeExpired()
+    {
+        long now = System.currentTimeMillis();
+        Iterator<Entry<V>> iterator = this.entries.values().iterator();
+        while (iterator.hasNext()) {
+            if (iterator.next().isExpired(now)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    private void evict()
+    {
+        if (!this.evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            this.removeExpired();
+            int targetSize = this.maxSize - Math.max(1, this.maxSize * EVICTED_PERCENT / PERCENT);
+            if (this.entries.size() <= targetSize) {
+                return;
+            }
+            List<Map.Entry<K, Entry<V>>> candidates = new ArrayList<>(this.entries.entrySet());
+            Collections.sort(candidates, new Comparator<Map.Entry<K, Entry<V>>>()
+            {
+                @Override
+                public int compare(Map.Entry<K, Entry<V>> first, Map.Entry<K, Entry<V>> second)
+                {
+                    return Long.compare(first.getValue().lastAccessTime, second.getValue().lastAccessTime);
+                }
+            });
+            Iterator<Map.Entry<K, Entry<V>>> iterator = candidates.iterator();
+            while (this.entries.size() > targetSize && iterator.hasNext()) {
+                Map.Entry<K, Entry<V>> candidate = iterator.next();
+                this.entries.remove(candidate.getKey(), candidate.getValue());
+            }
+        } finally {
+            this.evictionLock.unlock();
+        }
+    }
+
+    private static final class Entry<V>
+    {
+        private final V value;
+
+        private final long expirationTime;
+
+        private volatile long lastAccessTime;
+
+        Entry(V value, long expirationTime)
+        {
+            this.value = value;
+            this.expirationTime = expirationTime;
+            this.lastAccessTime = System.currentTimeMillis();
+        }
+
+        boolean isExpired(long now)
+        {
+            return now >= this.expirationTime;
+        }
+
+        void touch(long now)
+        {
+            // written at most once per millisecond, so that hot entries are not written on every lookup
+            if (this.lastAccessTime != now) {
+                this.lastAccessTime = now;
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal;
+
+import org.phenotips.remote.common.ApplicationConfiguration;
+import org.phenotips.remote.common.RemoteServerRegistry;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentDeletedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.model.reference.DocumentReference;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Makes the {@link RemoteServerRegistry} read the remote server configurations again whenever the document holding
+ * them is changed.
+ *
+ * @version $Id$
+ */
+@Component
+@Named("remote-matching-configuration-change-listener")
+@Singleton
+public class RemoteConfigurationChangeListener extends AbstractEventListener
+{
+    @Inject
+    private RemoteServerRegistry registry;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public RemoteConfigurationChangeListener()
+    {
+        super("remote-matching-configuration-change-listener", new DocumentCreatedEvent(),
+            new DocumentUpdatedEvent(), new DocumentDeletedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        DocumentReference reference = ((XWikiDocument) source).getDocumentReference();
+        if (reference.getName().equals(ApplicationConfiguration.XWIKI_PREFERENCES_DOCUMENT_REFERENCE.getName())
+            && reference.getLastSpaceReference().getName()
+                .equals(ApplicationConfiguration.XWIKI_SPACE.getName())) {
+            this.registry.reload();
+        }
+    }
+}
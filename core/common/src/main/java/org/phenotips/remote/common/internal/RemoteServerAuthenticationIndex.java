@@ -0,0 +1,138 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal;
+
+import org.phenotips.remote.common.RemoteServerConfig;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * An immutable snapshot of the configured remote servers, indexed for authenticating incoming requests without
+ * scanning the configurations. Remote servers which don't limit the accepted IPs are looked up by their token;
+ * the few servers which do limit the accepted IPs are checked in order, against host addresses resolved in advance.
+ *
+ * The outcome is the same as checking every configured server in order: the first server which either limits the
+ * accepted IPs and accepts the remote IP, or doesn't limit the accepted IPs and has the provided token, decides.
+ *
+ * @version $Id$
+ */
+final class RemoteServerAuthenticationIndex
+{
+    private final Map<String, Entry> serversByToken = new HashMap<>();
+
+    private final List<Entry> ipLimitedServers = new ArrayList<>();
+
+    private final Set<String> hosts = new LinkedHashSet<>();
+
+    /**
+     * @param remotes the remote server configurations, in the order in which they are configured
+     */
+    RemoteServerAuthenticationIndex(List<RemoteServerConfig> remotes)
+    {
+        int position = 0;
+        for (RemoteServerConfig remote : remotes) {
+            Entry entry = new Entry(position++, remote);
+            if (entry.limitIPs) {
+                this.ipLimitedServers.add(entry);
+                if (entry.host != null) {
+                    this.hosts.add(entry.host);
+                }
+            } else if (!this.serversByToken.containsKey(getTokenKey(entry.token))) {
+                // only the first server with a given token can ever be selected
+                this.serversByToken.put(getTokenKey(entry.token), entry);
+            }
+        }
+    }
+
+    /**
+     * @return the hosts which have to be resolved for checking the remote IPs
+     */
+    Set<String> getHosts()
+    {
+        return Collections.unmodifiableSet(this.hosts);
+    }
+
+    /**
+     * @param remoteIP the address of the remote server sending the request
+     * @param providedToken the token provided by the remote server
+     * @param resolvedHosts the addresses of the {@link #getHosts() hosts}; hosts missing from the map, e.g. because
+     *            they could not be resolved, accept any remote IP
+     * @return the configuration of the authenticated server, or {@code null} if the request is not authenticated
+     */
+    RemoteServerConfig authenticate(String remoteIP, String providedToken, Map<String, String> resolvedHosts)
+    {
+        Entry tokenMatch = this.serversByToken.get(getTokenKey(providedToken));
+        for (Entry server : this.ipLimitedServers) {
+            if (tokenMatch != null && server.position > tokenMatch.position) {
+                break;
+            }
+            String configuredIP = (server.host == null) ? null : resolvedHosts.get(server.host);
+            if (configuredIP == null || StringUtils.equalsIgnoreCase(remoteIP, configuredIP)) {
+                // an IP limited server accepting this IP requires its own token
+                return StringUtils.equalsIgnoreCase(providedToken, server.token) ? server.remote : null;
+            }
+        }
+        return (tokenMatch == null) ? null : tokenMatch.remote;
+    }
+
+    private static String getTokenKey(String token)
+    {
+        return (token == null) ? null : token.toLowerCase(Locale.ROOT);
+    }
+
+    private static final class Entry
+    {
+        private final int position;
+
+        private final RemoteServerConfig remote;
+
+        private final String token;
+
+        private final boolean limitIPs;
+
+        private final String host;
+
+        Entry(int position, RemoteServerConfig remote)
+        {
+            this.position = position;
+            this.remote = remote;
+            this.token = remote.getLocalAuthToken();
+            this.limitIPs = remote.isLimitAcceptedIPs();
+            String host = null;
+            if (this.limitIPs) {
+                try {
+                    host = new URL(remote.getBaseURL()).getHost();
+                } catch (MalformedURLException ex) {
+                    // same as an unresolved host
+                }
+            }
+            this.host = host;
+        }
+    }
+}
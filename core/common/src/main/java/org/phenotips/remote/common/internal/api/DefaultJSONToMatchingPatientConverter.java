@@ -28,6 +28,7 @@
 import org.phenotips.remote.api.ApiConfiguration;
 import org.phenotips.remote.api.ApiViolationException;
 import org.phenotips.remote.api.fromjson.JSONToMatchingPatientConverter;
+import org.phenotips.remote.common.internal.CachingTermResolver;
 import org.phenotips.remote.common.internal.RemotePatientDisorder;
 import org.phenotips.remote.common.internal.RemotePatientFeature;
 import org.phenotips.vocabulary.Vocabulary;
@@ -38,12 +39,14 @@
 import org.xwiki.component.manager.ComponentManager;
 
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 
 import org.apache.commons.lang3.StringUtils;
 import org.json.JSONArray;
@@ -55,15 +58,6 @@ public class DefaultJSONToMatchingPatientConverter implements JSONToMatchingPati
 {
     private static final Logger LOGGER = LoggerFactory.getLogger(DefaultJSONToMatchingPatientConverter.class);
 
-    // note: different API versions may have different patterns, may need to add support
-    //       for multiple patterns when we support multiple API versions
-
-    private static final Pattern HPO_TERM_PATTERN = Pattern.compile("^HP:\\d+$");
-
-    private static final Pattern MIM_DISORDER_TERM_PATTERN = Pattern.compile("^MIM:\\d+$");
-
-    private static final Pattern ORPHANET_DISORDER_TERM_PATTERN = Pattern.compile("^Orphanet:\\d+$");
-
     private static final Vocabulary MIM_VOCABULARY;
 
     private static final Vocabulary HPO_VOCABULARY;
@@ -72,17 +66,33 @@ public class DefaultJSONToMatchingPatientConverter implements JSONToMatchingPati
 
     private static final Vocabulary ORDO_VOCABULARY;
 
+    private static final int TERM_CACHE_SIZE = 20000;
+
+    private static final long TERM_CACHE_TIME_TO_LIVE_MS = TimeUnit.HOURS.toMillis(1);
+
+    // term lookups are shared by all converters, since the same terms are used by most remote patients
+    private static final CachingTermResolver MIM_TERMS;
+
+    private static final CachingTermResolver HPO_TERMS;
+
+    private static final CachingTermResolver HGNC_TERMS;
+
+    private static final CachingTermResolver ORDO_TERMS;
+
     /**
      * Parsing some patients generates a huge amount of errors, which may spam the server log.
      * So this implementation supports grouping all errors together and displaying them on request,
      * with the goal of displaying only one error message per match response (not one per patient).
      * This is not a very clean solution, but otherwise server log is way too busy with these.
+     *
+     * The grouped errors are kept in concurrent sets, so that one converter can be shared by all the threads
+     * converting the patients of the same match response.
      */
     private boolean groupMinorErrors;
 
-    private Set<String> groupedUnsupportedFeatures = new HashSet<String>();
+    private final Set<String> groupedUnsupportedFeatures = ConcurrentHashMap.newKeySet();
 
-    private Set<String> groupedUnsupportedDisorders = new HashSet<String>();
+    private final Set<String> groupedUnsupportedDisorders = ConcurrentHashMap.newKeySet();
 
     static {
         Vocabulary mim = null;
@@ -103,6 +113,11 @@ public class DefaultJSONToMatchingPatientConverter implements JSONToMatchingPati
         HPO_VOCABULARY  = hpo;
         HGNC_VOCABULARY = hgnc;
         ORDO_VOCABULARY = ordo;
+
+        MIM_TERMS = new CachingTermResolver(MIM_VOCABULARY, TERM_CACHE_SIZE, TERM_CACHE_TIME_TO_LIVE_MS);
+        HPO_TERMS = new CachingTermResolver(HPO_VOCABULARY, TERM_CACHE_SIZE, TERM_CACHE_TIME_TO_LIVE_MS);
+        HGNC_TERMS = new CachingTermResolver(HGNC_VOCABULARY, TERM_CACHE_SIZE, TERM_CACHE_TIME_TO_LIVE_MS);
+        ORDO_TERMS = new CachingTermResolver(ORDO_VOCABULARY, TERM_CACHE_SIZE, TERM_CACHE_TIME_TO_LIVE_MS);
     }
 
     public DefaultJSONToMatchingPatientConverter()
@@ -115,6 +130,78 @@ public DefaultJSONToMatchingPatientConverter(boolean groupMinorErrors)
         this.groupMinorErrors = groupMinorErrors;
     }
 
+    /**
+     * @return hit and miss counts of the vocabulary term caches shared by all converters
+     */
+    public static JSONObject getTermCacheStatistics()
+    {
+        JSONObject result = new JSONObject();
+        result.put("HPO", HPO_TERMS.getStatistics());
+        result.put("MIM", MIM_TERMS.getStatistics());
+        result.put("ORDO", ORDO_TERMS.getStatistics());
+        result.put("HGNC", HGNC_TERMS.getStatistics());
+        return result;
+    }
+
+    /**
+     * @return the HPO term lookups shared by all converters, which include the terms of the converted patients
+     */
+    public static CachingTermResolver getHpoTermResolver()
+    {
+        return HPO_TERMS;
+    }
+
+    /**
+     * Resolves all the phenotype and disorder identifiers used by the given remote patients with one query per
+     * vocabulary, instead of one query per identifier when each patient is {@link #convert converted}. Meant to be
+     * called with all the patients of a reply, or of a batch of patients from a reply, before converting them.
+     *
+     * @param patientsJSON remote patients, as received from the remote server
+     */
+    public void prefetchTerms(Collection<JSONObject> patientsJSON)
+    {
+        Set<String> hpoIds = new HashSet<>();
+        Set<String> mimIds = new HashSet<>();
+        Set<String> ordoIds = new HashSet<>();
+        for (JSONObject patientJSON : patientsJSON) {
+            if (patientJSON == null) {
+                continue;
+            }
+            JSONArray featuresJson = patientJSON.optJSONArray(ApiConfiguration.JSON_FEATURES);
+            for (int i = 0; featuresJson != null && i < featuresJson.length(); i++) {
+                JSONObject jsonFeature = featuresJson.optJSONObject(i);
+                String id =
+                    (jsonFeature != null) ? jsonFeature.optString(ApiConfiguration.JSON_FEATURE_ID, null) : null;
+                id = TermIdScanner.normalizeHpoId(id);
+                if (id != null) {
+                    hpoIds.add(id);
+                }
+            }
+            JSONArray disordersJson = patientJSON.optJSONArray(ApiConfiguration.JSON_DISORDERS);
+            for (int i = 0; disordersJson != null && i < disordersJson.length(); i++) {
+                JSONObject jsonDisorder = disordersJson.optJSONObject(i);
+                String id =
+                    (jsonDisorder != null) ? jsonDisorder.optString(ApiConfiguration.JSON_DISORDER_ID, null) : null;
+                if (id != null) {
+                    id = id.trim();
+                    if (TermIdScanner.isMimId(id)) {
+                        mimIds.add(id);
+                    } else if (TermIdScanner.isOrphanetId(id)) {
+                        ordoIds.add(TermIdScanner.toOrdoId(id));
+                    }
+                }
+            }
+        }
+        try {
+            HPO_TERMS.prefetch(hpoIds);
+            MIM_TERMS.prefetch(mimIds);
+            ORDO_TERMS.prefetch(ordoIds);
+        } catch (Exception ex) {
+            // terms will be resolved one by one during conversion
+            LOGGER.warn("Failed to resolve vocabulary terms in bulk: [{}]", ex.getMessage());
+        }
+    }
+
     public void logGroupedMinorErrors()
     {
         this.logUnsuportedFeatures(this.groupedUnsupportedFeatures);
@@ -198,9 +285,11 @@ private Set<Feature> convertFeatures(JSONObject json)
             for (Object jsonFeatureUncast : featuresJson) {
                 try {
                     JSONObject jsonFeature = (JSONObject) jsonFeatureUncast;
-                    String id = jsonFeature.getString(ApiConfiguration.JSON_FEATURE_ID).toUpperCase().trim();
+                    String rawId = jsonFeature.getString(ApiConfiguration.JSON_FEATURE_ID);
+                    String id = TermIdScanner.normalizeHpoId(rawId);
 
-                    if (!HPO_TERM_PATTERN.matcher(id).matches()) {
+                    if (id == null) {
+                        id = rawId.toUpperCase().trim();
                         ignoredTerms.add(id);
                         // save this term as a free text term using its label, if available
                         String label = jsonFeature.getString(ApiConfiguration.JSON_FEATURE_LABEL);
@@ -210,7 +299,7 @@ private Set<Feature> convertFeatures(JSONObject json)
                     }
 
                     // resolve the given feature identifier to an human phenotype ontology feature ID
-                    VocabularyTerm term = HPO_VOCABULARY.getTerm(id);
+                    VocabularyTerm term = HPO_TERMS.getTerm(id);
                     id = (term != null) ? term.getId() : id;
 
                     String observed = jsonFeature.optString(ApiConfiguration.JSON_FEATURE_OBSERVED,
@@ -264,16 +353,16 @@ private Set<Disorder> convertDisorders(JSONObject json)
                     String id = jsonDisorder.getString(ApiConfiguration.JSON_DISORDER_ID).trim();
                     String label = jsonDisorder.optString(ApiConfiguration.JSON_DISORDER_LABEL, null);
 
-                    if (MIM_DISORDER_TERM_PATTERN.matcher(id).matches()) {
+                    if (TermIdScanner.isMimId(id)) {
                         // resolve the given disease identifier to a MIM ontology disease ID
-                        VocabularyTerm term = MIM_VOCABULARY.getTerm(id);
+                        VocabularyTerm term = MIM_TERMS.getTerm(id);
                         // since MIM vocabulary terms ids are stored in solr without prefix
                         // prefix has to be manually added to every id
                         id = (term != null) ? "MIM:" + term.getId() : id;
-                    } else if (ORPHANET_DISORDER_TERM_PATTERN.matcher(id).matches()) {
-                        id = id.replace(ApiConfiguration.JSON_DISORDER_ORPHANET_PREFIX, "ORDO:");
+                    } else if (TermIdScanner.isOrphanetId(id)) {
+                        id = TermIdScanner.toOrdoId(id);
                         // resolve the given disease identifier to a ORDO ontology disease ID
-                        VocabularyTerm term = ORDO_VOCABULARY.getTerm(id);
+                        VocabularyTerm term = ORDO_TERMS.getTerm(id);
                         id = (term != null) ? term.getId() : id;
                     } else {
                         ignoredTerms.add(id);
@@ -390,7 +479,7 @@ private ContactInfo parseContactInfo(JSONObject json)
      */
     private String normalizeGeneId(String geneId)
     {
-        final VocabularyTerm term = HGNC_VOCABULARY.getTerm(geneId);
+        final VocabularyTerm term = HGNC_TERMS.getTerm(geneId);
         if (term == null) {
             LOGGER.error("Patient genomic features parser: gene id [{}] was not found in the vocabulary", geneId);
         }
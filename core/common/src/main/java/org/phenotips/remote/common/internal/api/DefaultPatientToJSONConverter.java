@@ -35,7 +35,6 @@
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.regex.Pattern;
 
 import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.tuple.ImmutablePair;
@@ -54,13 +53,9 @@ public class DefaultPatientToJSONConverter implements PatientToJSONConverter
 
     private Logger logger;
 
-    private final Pattern hpoTerm; // not static: may be different from api version to api version
-
     public DefaultPatientToJSONConverter(String apiVersion, Logger logger)
     {
         this.logger = logger;
-
-        this.hpoTerm = Pattern.compile("^HP:\\d+$");
     }
 
     @Override
@@ -165,7 +160,7 @@ private JSONArray features(Patient patient)
         JSONArray features = new JSONArray();
         for (Feature patientFeature : patient.getFeatures()) {
             String featureId = patientFeature.getId();
-            if (featureId.isEmpty() || !this.hpoTerm.matcher(featureId).matches()) {
+            if (!TermIdScanner.isHpoId(featureId)) {
                 this.logger.error("Patient feature parser: ignoring term with non-HPO id [{}]", featureId);
                 continue;
             }
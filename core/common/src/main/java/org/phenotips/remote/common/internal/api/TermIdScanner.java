@@ -0,0 +1,126 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.common.internal.api;
+
+import org.phenotips.remote.api.ApiConfiguration;
+
+/**
+ * Validation of the term identifiers exchanged with remote servers, done by scanning the characters of the identifier
+ * instead of using regular expressions, and without creating intermediate strings when the identifier is already in
+ * its canonical form. This runs for every term of every patient sent or received, in both directions.
+ *
+ * Note: different API versions may use different identifier formats; this implements the formats of the current API.
+ *
+ * @version $Id$
+ */
+public final class TermIdScanner
+{
+    private static final String HPO_PREFIX = "HP:";
+
+    private static final String MIM_PREFIX = "MIM:";
+
+    private static final String ORPHANET_PREFIX = ApiConfiguration.JSON_DISORDER_ORPHANET_PREFIX;
+
+    private static final String ORDO_PREFIX = "ORDO:";
+
+    private TermIdScanner()
+    {
+        // utility class
+    }
+
+    /**
+     * @param id a term identifier
+     * @return {@code true} if the identifier is exactly {@code HP:} followed by one or more digits
+     */
+    public static boolean isHpoId(String id)
+    {
+        return id != null && isPrefixAndDigits(id, 0, id.length(), HPO_PREFIX, false);
+    }
+
+    /**
+     * Validates an HPO identifier received from a remote server, tolerating surrounding whitespace and a lower case
+     * prefix.
+     *
+     * @param id a term identifier
+     * @return the canonical form of the identifier ({@code id} itself when it is already canonical), or {@code null} if
+     *         it is not an HPO identifier
+     */
+    public static String normalizeHpoId(String id)
+    {
+        if (id == null) {
+            return null;
+        }
+        int start = 0;
+        int end = id.length();
+        while (start < end && id.charAt(start) <= ' ') {
+            start++;
+        }
+        while (end > start && id.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        if (!isPrefixAndDigits(id, start, end, HPO_PREFIX, true)) {
+            return null;
+        }
+        if (start == 0 && end == id.length() && id.startsWith(HPO_PREFIX)) {
+            return id;
+        }
+        return HPO_PREFIX + id.substring(start + HPO_PREFIX.length(), end);
+    }
+
+    /**
+     * @param id a disorder identifier
+     * @return {@code true} if the identifier is exactly {@code MIM:} followed by one or more digits
+     */
+    public static boolean isMimId(String id)
+    {
+        return id != null && isPrefixAndDigits(id, 0, id.length(), MIM_PREFIX, false);
+    }
+
+    /**
+     * @param id a disorder identifier
+     * @return {@code true} if the identifier is exactly {@code Orphanet:} followed by one or more digits
+     */
+    public static boolean isOrphanetId(String id)
+    {
+        return id != null && isPrefixAndDigits(id, 0, id.length(), ORPHANET_PREFIX, false);
+    }
+
+    /**
+     * @param orphanetId a valid {@link #isOrphanetId Orphanet identifier}, as used by the MME API
+     * @return the corresponding identifier in the ORDO vocabulary
+     */
+    public static String toOrdoId(String orphanetId)
+    {
+        return ORDO_PREFIX.concat(orphanetId.substring(ORPHANET_PREFIX.length()));
+    }
+
+    private static boolean isPrefixAndDigits(String id, int start, int end, String prefix, boolean ignorePrefixCase)
+    {
+        int digitsStart = start + prefix.length();
+        if (end <= digitsStart || !id.regionMatches(ignorePrefixCase, start, prefix, 0, prefix.length())) {
+            return false;
+        }
+        for (int i = digitsStart; i < end; i++) {
+            char c = id.charAt(i);
+            if (c < '0' || c > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+}
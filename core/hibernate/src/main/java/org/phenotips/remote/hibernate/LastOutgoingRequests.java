@@ -0,0 +1,58 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate;
+
+import org.phenotips.remote.api.OutgoingMatchRequest;
+
+/**
+ * The last request sent to a remote server for a local patient, together with the last successful one.
+ *
+ * @version $Id$
+ */
+public final class LastOutgoingRequests
+{
+    private final OutgoingMatchRequest lastRequest;
+
+    private final OutgoingMatchRequest lastSuccessfulRequest;
+
+    /**
+     * @param lastRequest the last request, {@code null} if no request was sent
+     * @param lastSuccessfulRequest the last request which resulted in an HTTP OK status, {@code null} if none did
+     */
+    public LastOutgoingRequests(OutgoingMatchRequest lastRequest, OutgoingMatchRequest lastSuccessfulRequest)
+    {
+        this.lastRequest = lastRequest;
+        this.lastSuccessfulRequest = lastSuccessfulRequest;
+    }
+
+    /**
+     * @return the last request, {@code null} if no request was sent
+     */
+    public OutgoingMatchRequest getLastRequest()
+    {
+        return this.lastRequest;
+    }
+
+    /**
+     * @return the last request which resulted in an HTTP OK status, {@code null} if none did
+     */
+    public OutgoingMatchRequest getLastSuccessfulRequest()
+    {
+        return this.lastSuccessfulRequest;
+    }
+}
@@ -22,6 +22,9 @@
 
 import org.xwiki.component.annotation.Role;
 
+import java.util.Collection;
+import java.util.Map;
+
 @Role
 public interface RemoteMatchingStorageManager
 {
@@ -32,6 +35,15 @@
      */
     void saveIncomingRequest(IncomingMatchRequest request);
 
+    /**
+     * Stores several incoming requests and their replies for audit purposes, in one transaction, using JDBC batching
+     * when the database supports it. Either all requests are stored, or none is.
+     *
+     * @param requests the requests to store
+     * @throws org.hibernate.HibernateException if the requests could not be stored
+     */
+    void saveIncomingRequests(Collection<? extends IncomingMatchRequest> requests);
+
     /**
      * Stores the incoming request and the generated reply for audit purposes.
      *
@@ -39,10 +51,20 @@
      */
     void saveOutgoingRequest(OutgoingMatchRequest request);
 
+    /**
+     * Stores several outgoing requests and the received responses for audit purposes, in one transaction, using JDBC
+     * batching when the database supports it. Either all requests are stored, or none is.
+     *
+     * @param requests the requests to store
+     * @throws org.hibernate.HibernateException if the requests could not be stored
+     */
+    void saveOutgoingRequests(Collection<? extends OutgoingMatchRequest> requests);
+
     /**
      * Returns the last request and response received form the given server when querying for the given patient.
      *
-     * Returns null if no such requests exist in the database.
+     * Returns null if no such requests exist in the database. The request and response payloads are only loaded from
+     * the database if they are accessed.
      *
      * @param remoteServerId
      * @param patientId
@@ -55,7 +77,8 @@
      * the given patient. A request is considered successful if it resulted in an HTTP OK status, even if no
      * matches were found.
      *
-     * Returns null if no such requests exist in the database.
+     * Returns null if no such requests exist in the database. The request and response payloads are only loaded from
+     * the database if they are accessed.
      *
      * @param remoteServerId
      * @param patientId
@@ -63,9 +86,48 @@
      */
     OutgoingMatchRequest getLastSuccessfulOutgoingRequest(String remoteServerId, String patientId);
 
+    /**
+     * Returns both the {@link #getLastOutgoingRequest last} and the {@link #getLastSuccessfulOutgoingRequest last
+     * successful} request sent to the given server for the given patient, using a single query. The request and
+     * response payloads are only loaded from the database if they are accessed.
+     *
+     * @param remoteServerId the remote server
+     * @param patientId the local patient
+     * @return the last requests, never {@code null}
+     */
+    LastOutgoingRequests getLastOutgoingRequests(String remoteServerId, String patientId);
+
+    /**
+     * Bulk version of {@link #getLastOutgoingRequests(String, String)}, which returns the last requests sent to the
+     * given servers for many patients using one query for every few hundred patients.
+     *
+     * @param remoteServerIds the remote servers to look for
+     * @param patientIds the local patients to look for
+     * @return the last requests, indexed by the local patient identifier and then by the remote server identifier;
+     *         patients and servers without any requests are missing from the result
+     */
+    Map<String, Map<String, LastOutgoingRequests>> getLastOutgoingRequests(Collection<String> remoteServerIds,
+        Collection<String> patientIds);
+
     /**
      * Removes all outgoing matches for the given patient (presumably because the patient is deleted)
      * @param patientId the local patient ID for whom the outgoing matches should be deleted
      */
     void deleteMatchesForLocalPatient(String patientId);
+
+    /**
+     * Schedules the removal of all the stored requests referencing the given local patient, presumably because the
+     * patient is being deleted: the outgoing requests sent for the patient, and the incoming requests which returned
+     * the patient as a match. The pending removal is stored, and the requests are deleted in the background, in small
+     * chunks, so this method returns quickly.
+     *
+     * @param patientId the local patient ID for whom the stored requests should be deleted
+     */
+    void scheduleDeletionForLocalPatient(String patientId);
+
+    /**
+     * Resumes the removals {@link #scheduleDeletionForLocalPatient scheduled} before the last shutdown, which were not
+     * completed yet. The requests are deleted in the background.
+     */
+    void resumePendingDeletions();
 }
@@ -19,9 +19,14 @@
 
 import org.phenotips.remote.api.MatchRequest;
 
+import java.io.ByteArrayOutputStream;
+import java.io.FilterWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.sql.Timestamp;
 
 import javax.persistence.Basic;
+import javax.persistence.Column;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.MappedSuperclass;
@@ -53,12 +58,28 @@ public abstract class AbstractSearchRequest implements MatchRequest
     @Basic
     private Timestamp requestTime;
 
+    // Payloads are stored gzipped in the binary columns; the text columns are only set for rows stored before
+    // compression was introduced, and are emptied by PayloadCompressionMigrator
+
     @Type(type = "text")
     private String request;
 
     @Type(type = "text")
     private String response;
 
+    @Type(type = "binary")
+    @Column(length = Integer.MAX_VALUE)
+    private byte[] requestData;
+
+    @Type(type = "binary")
+    @Column(length = Integer.MAX_VALUE)
+    private byte[] responseData;
+
+    /** Decompressed payloads, so that they are only decompressed once. */
+    private transient String requestText;
+
+    private transient String responseText;
+
     @Basic
     private String apiVersionUsed;
 
@@ -80,6 +101,23 @@ public AbstractSearchRequest(String remoteServerId, String apiVersionUsed, Strin
         this.requestTime = new Timestamp(System.currentTimeMillis());
     }
 
+    /**
+     * Creates a request holding only the metadata of an already stored request, for subclasses which load the
+     * payloads on demand by overriding {@link #getRequest()} and {@link #getResponse()}.
+     */
+    protected AbstractSearchRequest(Long id, String remoteServerId, String apiVersionUsed, Timestamp requestTime)
+    {
+        this.id = id;
+        this.remoteServerId = remoteServerId;
+        this.apiVersionUsed = apiVersionUsed;
+        this.requestTime = requestTime;
+    }
+
+    Long getId()
+    {
+        return this.id;
+    }
+
     @Override
     public String getRemoteServerId()
     {
@@ -102,8 +140,8 @@ public Timestamp getRequestTime()
     public JSONObject getRequestJSON()
     {
         try {
-            return new JSONObject(this.request);
-        } catch (JSONException ex) {
+            return new JSONObject(this.getRequest());
+        } catch (JSONException | NullPointerException ex) {
             return null;
         }
     }
@@ -112,19 +150,71 @@ public JSONObject getRequestJSON()
     public JSONObject getResponseJSON()
     {
         try {
-            return new JSONObject(this.response);
+            return new JSONObject(this.getResponse());
         } catch (JSONException | NullPointerException ex) {
             return null;
         }
     }
 
+    protected String getRequest()
+    {
+        if (this.requestText == null) {
+            this.requestText = (this.requestData != null) ? PayloadCompression.decompress(this.requestData)
+                : this.request;
+        }
+        return this.requestText;
+    }
+
+    protected String getResponse()
+    {
+        if (this.responseText == null) {
+            this.responseText = (this.responseData != null) ? PayloadCompression.decompress(this.responseData)
+                : this.response;
+        }
+        return this.responseText;
+    }
+
     protected void setRequest(String request)
     {
-        this.request = request;
+        this.request = null;
+        this.requestData = PayloadCompression.compress(request);
+        this.requestText = request;
     }
 
     protected void setResponse(String response)
     {
-        this.response = response;
+        this.response = null;
+        this.responseData = PayloadCompression.compress(response);
+        this.responseText = response;
+    }
+
+    /**
+     * Opens a writer for the response, which is compressed while it is being written instead of being held in memory
+     * as text. The stored response is only replaced once the writer is closed, so a response which could not be
+     * received completely is not stored.
+     *
+     * @return a writer for the text of the response
+     * @throws IOException if the compressed payload can't be created
+     */
+    protected Writer openResponseWriter() throws IOException
+    {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        return new FilterWriter(PayloadCompression.openWriter(data))
+        {
+            private boolean closed;
+
+            @Override
+            public void close() throws IOException
+            {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                super.close();
+                AbstractSearchRequest.this.response = null;
+                AbstractSearchRequest.this.responseData = data.toByteArray();
+                AbstractSearchRequest.this.responseText = null;
+            }
+        };
     }
 }
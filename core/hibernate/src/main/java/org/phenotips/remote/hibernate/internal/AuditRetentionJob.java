@@ -0,0 +1,224 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate.internal;
+
+import org.phenotips.remote.api.ApiConfiguration;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.configuration.ConfigurationSource;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import java.sql.Timestamp;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Periodically deletes old audit rows of outgoing and incoming requests. Outgoing requests older than the configured
+ * number of days are deleted, except for the last few requests for each patient and server, and for the last
+ * successful one, which are needed for displaying the matching status. Incoming requests older than the configured
+ * number of days are all deleted.
+ *
+ * Rows are deleted in small chunks, each in its own transaction, so that the tables are never locked for long.
+ *
+ * The retention policy can be configured in {@code xwiki.properties}, using the {@value #RETENTION_DAYS_PROPERTY},
+ * {@value #KEEP_LAST_PROPERTY} and {@value #INTERVAL_HOURS_PROPERTY} properties. Nothing is deleted unless a number
+ * of days is configured.
+ *
+ * @version $Id$
+ */
+@Component
+@Named("remote-matching-audit-retention")
+@Singleton
+public class AuditRetentionJob extends AbstractEventListener implements Disposable
+{
+    private static final String RETENTION_DAYS_PROPERTY = "remoteMatching.audit.retention.days";
+
+    private static final String KEEP_LAST_PROPERTY = "remoteMatching.audit.retention.keepLastPerPatientAndServer";
+
+    private static final int DEFAULT_KEEP_LAST = 10;
+
+    private static final String INTERVAL_HOURS_PROPERTY = "remoteMatching.audit.retention.intervalHours";
+
+    private static final int DEFAULT_INTERVAL_HOURS = 24;
+
+    /** Leaves some time for the startup activity to settle before the first purge. */
+    private static final long INITIAL_DELAY_MINUTES = 10;
+
+    private static final int CHUNK_SIZE = 500;
+
+    private static final String LAST_ID = "lastId";
+
+    private static final String CUTOFF = "cutoff";
+
+    /** Old outgoing requests which have at least {@code keepLast} newer requests, and a newer successful one. */
+    private static final String EXPIRED_OUTGOING_QUERY = "select req.id from DefaultOutgoingMatchRequest req"
+        + " where req.id > :lastId and req.requestTime < :cutoff"
+        + " and (select count(newer.id) from DefaultOutgoingMatchRequest newer"
+        + "   where newer.localReferencePatientId = req.localReferencePatientId"
+        + "   and newer.remoteServerId = req.remoteServerId and newer.requestTime > req.requestTime) >= :keepLast"
+        + " and (req.replyHTTPStatus is null or req.replyHTTPStatus <> :ok"
+        + "   or req.requestTime < (select max(ok.requestTime) from DefaultOutgoingMatchRequest ok"
+        + "   where ok.localReferencePatientId = req.localReferencePatientId"
+        + "   and ok.remoteServerId = req.remoteServerId and ok.replyHTTPStatus = :ok))"
+        + " order by req.id";
+
+    private static final String EXPIRED_INCOMING_QUERY = "select req.id from DefaultIncomingMatchRequest req"
+        + " where req.id > :lastId and req.requestTime < :cutoff order by req.id";
+
+    private static final String DELETE_QUERY = "delete from %s where id in (:ids)";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private ScheduledExecutorService scheduler;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public AuditRetentionJob()
+    {
+        super("remote-matching-audit-retention", new ApplicationReadyEvent());
+    }
+
+    @Override
+    public synchronized void onEvent(Event event, Object source, Object data)
+    {
+        int retentionDays = this.configuration.getProperty(RETENTION_DAYS_PROPERTY, 0);
+        if (retentionDays <= 0 || this.scheduler != null) {
+            return;
+        }
+        int intervalHours =
+            Math.max(1, this.configuration.getProperty(INTERVAL_HOURS_PROPERTY, DEFAULT_INTERVAL_HOURS));
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-audit-retention-%d").daemon(true).build());
+        this.scheduler.scheduleWithFixedDelay(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                purge();
+            }
+        }, TimeUnit.MINUTES.toMillis(INITIAL_DELAY_MINUTES), TimeUnit.HOURS.toMillis(intervalHours),
+            TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public synchronized void dispose()
+    {
+        if (this.scheduler != null) {
+            this.scheduler.shutdownNow();
+        }
+    }
+
+    private void purge()
+    {
+        int retentionDays = this.configuration.getProperty(RETENTION_DAYS_PROPERTY, 0);
+        if (retentionDays <= 0) {
+            return;
+        }
+        int keepLast = Math.max(0, this.configuration.getProperty(KEEP_LAST_PROPERTY, DEFAULT_KEEP_LAST));
+        Timestamp cutoff = new Timestamp(System.currentTimeMillis() - TimeUnit.DAYS.toMillis(retentionDays));
+        try {
+            int outgoing = this.purge(DefaultOutgoingMatchRequest.class, cutoff, keepLast);
+            int incoming = this.purge(DefaultIncomingMatchRequest.class, cutoff, keepLast);
+            this.logger.info("Deleted [{}] outgoing and [{}] incoming requests older than [{}] days", outgoing,
+                incoming, retentionDays);
+        } catch (HibernateException ex) {
+            this.logger.error("Failed to delete old match requests: {}", ex.getMessage(), ex);
+        }
+    }
+
+    private int purge(Class<? extends AbstractSearchRequest> entityClass, Timestamp cutoff, int keepLast)
+    {
+        int deleted = 0;
+        long lastId = 0;
+        List<Long> chunk = this.getExpiredIds(entityClass, lastId, cutoff, keepLast);
+        while (!chunk.isEmpty() && !Thread.currentThread().isInterrupted()) {
+            deleted += this.delete(entityClass, chunk);
+            lastId = chunk.get(chunk.size() - 1);
+            chunk = this.getExpiredIds(entityClass, lastId, cutoff, keepLast);
+        }
+        return deleted;
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<Long> getExpiredIds(Class<? extends AbstractSearchRequest> entityClass, long lastId, Timestamp cutoff,
+        int keepLast)
+    {
+        boolean outgoing = DefaultOutgoingMatchRequest.class.equals(entityClass);
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Query query = session.createQuery(outgoing ? EXPIRED_OUTGOING_QUERY : EXPIRED_INCOMING_QUERY);
+            query.setParameter(LAST_ID, lastId);
+            query.setParameter(CUTOFF, cutoff);
+            if (outgoing) {
+                query.setParameter("keepLast", (long) keepLast);
+                query.setParameter("ok", ApiConfiguration.HTTP_OK);
+            }
+            query.setMaxResults(CHUNK_SIZE);
+            return query.list();
+        } finally {
+            session.close();
+        }
+    }
+
+    private int delete(Class<? extends AbstractSearchRequest> entityClass, List<Long> ids)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            if (DefaultIncomingMatchRequest.class.equals(entityClass)) {
+                session.createQuery(IncomingMatchedPatient.DELETE_FOR_REQUESTS_QUERY)
+                    .setParameterList("ids", ids).executeUpdate();
+            }
+            Query query = session.createQuery(String.format(DELETE_QUERY, entityClass.getSimpleName()));
+            query.setParameterList("ids", ids);
+            int deleted = query.executeUpdate();
+            t.commit();
+            return deleted;
+        } catch (HibernateException ex) {
+            t.rollback();
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -18,13 +18,20 @@
 package org.phenotips.remote.hibernate.internal;
 
 import org.phenotips.data.Patient;
+import org.phenotips.remote.api.ApiConfiguration;
 import org.phenotips.remote.api.IncomingMatchRequest;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
 import javax.persistence.Entity;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 
 import org.hibernate.annotations.Index;
+import org.json.JSONArray;
 import org.json.JSONObject;
 
 /**
@@ -41,6 +48,13 @@
 
 public class DefaultIncomingMatchRequest extends AbstractSearchRequest implements IncomingMatchRequest
 {
+    /**
+     * The local patients returned in the response, stored as {@link IncomingMatchedPatient} rows along with the request
+     * so that the requests referencing a local patient can be found without reading the responses.
+     */
+    @Transient
+    private Set<String> matchedLocalPatients = Collections.emptySet();
+
     @Transient
     private Patient remotePatient;
 
@@ -73,6 +87,27 @@ public DefaultIncomingMatchRequest(String remoteServerId, String apiVersionUsed,
     public void addResponse(JSONObject response)
     {
         this.setResponse(response.toString());
+
+        Set<String> matchedPatients = new LinkedHashSet<>();
+        JSONArray results = response.optJSONArray(ApiConfiguration.REPLY_JSON_RESULTS);
+        for (int i = 0; results != null && i < results.length(); ++i) {
+            JSONObject result = results.optJSONObject(i);
+            JSONObject patient =
+                (result == null) ? null : result.optJSONObject(ApiConfiguration.REPLY_JSON_RESULTS_PATIENT);
+            if (patient != null && patient.has(ApiConfiguration.JSON_PATIENT_ID)) {
+                matchedPatients.add(patient.getString(ApiConfiguration.JSON_PATIENT_ID));
+            }
+        }
+        this.matchedLocalPatients = matchedPatients;
+    }
+
+    /**
+     * @return the identifiers of the local patients returned in the response, only known for requests which were not
+     *         loaded from the database
+     */
+    Collection<String> getMatchedLocalPatients()
+    {
+        return this.matchedLocalPatients;
     }
 
     @Override
@@ -20,6 +20,10 @@
 import org.phenotips.remote.api.ApiConfiguration;
 import org.phenotips.remote.api.OutgoingMatchRequest;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.sql.Timestamp;
+
 import javax.persistence.Basic;
 import javax.persistence.Entity;
 import javax.persistence.Table;
@@ -37,7 +41,9 @@
 
 // Can not add an @Index annotation in superclass, so have to add the index manually
 @org.hibernate.annotations.Table(appliesTo = "remote_matching_outgoing_requests", indexes =
-             { @Index(name = "outgoingmme_remoteServerIdIndex", columnNames = { "remoteServerId" }) })
+             { @Index(name = "outgoingmme_remoteServerIdIndex", columnNames = { "remoteServerId" }),
+               @Index(name = "outgoingmme_patientServerTimeIndex",
+                      columnNames = { "localReferencePatientId", "remoteServerId", "requestTime" }) })
 
 public class DefaultOutgoingMatchRequest extends AbstractSearchRequest implements OutgoingMatchRequest
 {
@@ -48,6 +54,13 @@ public class DefaultOutgoingMatchRequest extends AbstractSearchRequest implement
     @Basic
     private Integer replyHTTPStatus;
 
+    /**
+     * Whether the reply was valid, set while the reply is being parsed and stored so that it can be checked without
+     * loading the response; {@code null} for requests stored by older versions, and for responses set as a whole.
+     */
+    @Basic
+    private Boolean validReply;
+
     /**
      * Hibernate requires a no-args constructor
      */
@@ -62,6 +75,23 @@ public DefaultOutgoingMatchRequest(String remoteServerId, String apiVersionUsed,
         this.localReferencePatientId = localReferencePatientId;
 
         this.replyHTTPStatus = 0;
+
+        this.validReply = false;
+    }
+
+    /**
+     * Creates a request holding only the metadata of an already stored request.
+     *
+     * @see AbstractSearchRequest#AbstractSearchRequest(Long, String, String, Timestamp)
+     */
+    protected DefaultOutgoingMatchRequest(Long id, String remoteServerId, String apiVersionUsed,
+        Timestamp requestTime, String localReferencePatientId, Integer replyHTTPStatus, Boolean validReply)
+    {
+        super(id, remoteServerId, apiVersionUsed, requestTime);
+
+        this.localReferencePatientId = localReferencePatientId;
+        this.replyHTTPStatus = replyHTTPStatus;
+        this.validReply = validReply;
     }
 
     @Override
@@ -73,13 +103,8 @@ public String getLocalReferencePatientId()
     @Override
     public boolean wasSent()
     {
-        if (this.getRequestJSON() == null) {
-            return false;
-        }
-        if (this.getRequestJSON().has(ApiConfiguration.REPLY_JSON_ERROR_DESCRIPTION)) {
-            return false;
-        }
-        return true;
+        JSONObject requestJSON = this.getRequestJSON();
+        return requestJSON != null && !requestJSON.has(ApiConfiguration.REPLY_JSON_ERROR_DESCRIPTION);
     }
 
     @Override
@@ -91,10 +116,28 @@ public boolean errorContactingRemoteServer()
     @Override
     public boolean gotValidReply()
     {
-        return (this.wasSent()
-                && this.getRequestStatusCode().equals(ApiConfiguration.HTTP_OK)
-                && this.getResponseJSON() != null
-                && this.getResponseJSON().has(ApiConfiguration.REPLY_JSON_RESULTS));
+        if (this.validReply == null) {
+            // only for requests whose validity was not set when the reply was parsed;
+            // the status is checked first, since the response can be large
+            if (!ApiConfiguration.HTTP_OK.equals(this.getRequestStatusCode()) || !this.wasSent()) {
+                this.validReply = false;
+            } else {
+                JSONObject responseJSON = this.getResponseJSON();
+                this.validReply = responseJSON != null && responseJSON.has(ApiConfiguration.REPLY_JSON_RESULTS);
+            }
+        }
+        return this.validReply;
+    }
+
+    /**
+     * Records whether the reply was valid, i.e. whether its {@code results} array was found and read completely. This
+     * must be set by whoever parses the reply, since it is not computed again when the request is stored.
+     *
+     * @param validReply whether the reply was valid
+     */
+    public void setValidReply(boolean validReply)
+    {
+        this.validReply = validReply;
     }
 
     @Override
@@ -116,5 +159,20 @@ public void addRequestJSON(JSONObject request)
     public void addResponseString(String responseString)
     {
         this.setResponse(responseString);
+        this.validReply = null;
+    }
+
+    /**
+     * Opens a writer for the response, for replies which are stored while they are being received instead of being
+     * passed to {@link #addResponseString(String)} as a whole. The response is replaced once the writer is closed;
+     * the validity of the reply must then be set with {@link #setValidReply(boolean)}.
+     *
+     * @return a writer for the text of the response
+     * @throws IOException if the compressed payload can't be created
+     */
+    @Override
+    public Writer openResponseWriter() throws IOException
+    {
+        return super.openResponseWriter();
     }
 }
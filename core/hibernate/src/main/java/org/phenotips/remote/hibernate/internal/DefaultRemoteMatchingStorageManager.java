@@ -20,17 +20,34 @@
 import org.phenotips.remote.api.ApiConfiguration;
 import org.phenotips.remote.api.IncomingMatchRequest;
 import org.phenotips.remote.api.OutgoingMatchRequest;
+import org.phenotips.remote.hibernate.LastOutgoingRequests;
 import org.phenotips.remote.hibernate.RemoteMatchingStorageManager;
 import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.inject.Inject;
 import javax.inject.Singleton;
 
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
 import org.hibernate.Criteria;
 import org.hibernate.HibernateException;
 import org.hibernate.Query;
 import org.hibernate.Session;
+import org.hibernate.StatelessSession;
 import org.hibernate.Transaction;
+import org.hibernate.criterion.ProjectionList;
+import org.hibernate.criterion.Projections;
 import org.hibernate.criterion.Property;
 import org.hibernate.criterion.Restrictions;
 
@@ -46,8 +63,49 @@
  */
 @Component
 @Singleton
-public class DefaultRemoteMatchingStorageManager implements RemoteMatchingStorageManager
+public class DefaultRemoteMatchingStorageManager implements RemoteMatchingStorageManager, Initializable, Disposable
 {
+    /**
+     * Selects the last request and the last successful request in one query; both subqueries, as well as the outer
+     * query, are answered using the (patient, server, time) index. If several requests have the same time, the one
+     * stored last is preferred.
+     */
+    private static final String LAST_REQUESTS_QUERY = "select %s from DefaultOutgoingMatchRequest req"
+        + " where req.localReferencePatientId = :patientId and req.remoteServerId = :serverId"
+        + " and (req.requestTime = (select max(last.requestTime) from DefaultOutgoingMatchRequest last"
+        + "   where last.localReferencePatientId = :patientId and last.remoteServerId = :serverId)"
+        + " or req.requestTime = (select max(ok.requestTime) from DefaultOutgoingMatchRequest ok"
+        + "   where ok.localReferencePatientId = :patientId and ok.remoteServerId = :serverId"
+        + "   and ok.replyHTTPStatus = :ok))"
+        + " order by req.requestTime desc, req.id desc";
+
+    /**
+     * Same as {@link #LAST_REQUESTS_QUERY}, but for many patients and servers at once: the subqueries are correlated
+     * with the patient and the server of each row.
+     */
+    private static final String BULK_LAST_REQUESTS_QUERY = "select %s from DefaultOutgoingMatchRequest req"
+        + " where req.localReferencePatientId in (:patientIds) and req.remoteServerId in (:serverIds)"
+        + " and (req.requestTime = (select max(last.requestTime) from DefaultOutgoingMatchRequest last"
+        + "   where last.localReferencePatientId = req.localReferencePatientId"
+        + "   and last.remoteServerId = req.remoteServerId)"
+        + " or req.requestTime = (select max(ok.requestTime) from DefaultOutgoingMatchRequest ok"
+        + "   where ok.localReferencePatientId = req.localReferencePatientId"
+        + "   and ok.remoteServerId = req.remoteServerId and ok.replyHTTPStatus = :ok))"
+        + " order by req.requestTime desc, req.id desc";
+
+    /** Maximum number of patients in one query, since some databases limit the size of "in" lists. */
+    private static final int PATIENTS_PER_QUERY = 500;
+
+    private static final String OUTGOING_FOR_PATIENT_QUERY = "select req.id from DefaultOutgoingMatchRequest req"
+        + " where req.localReferencePatientId = :patient";
+
+    private static final String DELETE_BY_IDS_QUERY = "delete from %s where id in (:ids)";
+
+    /** Maximum number of rows deleted in one transaction. */
+    private static final int DELETE_CHUNK_SIZE = 500;
+
+    private static final int PENDING_DELETIONS_CHUNK_SIZE = 100;
+
     /** Handles persistence. */
     @Inject
     private HibernateSessionFactory sessionFactory;
@@ -56,6 +114,26 @@ public class DefaultRemoteMatchingStorageManager implements RemoteMatchingStorag
     @Inject
     private Logger logger;
 
+    /** Deletes the requests referencing deleted patients. */
+    private ExecutorService deletionExecutor;
+
+    /** Whether the deletion executor will look for pending deletions, so that it is not asked to do so repeatedly. */
+    private final AtomicBoolean deletionScheduled = new AtomicBoolean();
+
+    @Override
+    public void initialize()
+    {
+        this.deletionExecutor = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-deletions-%d").daemon(true).build());
+    }
+
+    @Override
+    public void dispose()
+    {
+        // pending deletions which are interrupted are resumed on the next startup
+        this.deletionExecutor.shutdownNow();
+    }
+
     @Override
     public void saveIncomingRequest(IncomingMatchRequest request)
     // public String saveIncomingPeriodicRequest(IncomingSearchRequest request)
@@ -64,6 +142,9 @@ public void saveIncomingRequest(IncomingMatchRequest request)
         Transaction t = session.beginTransaction();
         try {
             Long id = (Long) session.save(request);
+            for (IncomingMatchedPatient matchedPatient : getMatchedPatients(request)) {
+                session.save(matchedPatient);
+            }
             t.commit();
             this.logger.info("Stored new incoming request from server [{}] with id [{}]",
                 request.getRemoteServerId(), id);
@@ -79,6 +160,21 @@ public void saveIncomingRequest(IncomingMatchRequest request)
         }
     }
 
+    @Override
+    public void saveIncomingRequests(Collection<? extends IncomingMatchRequest> requests)
+    {
+        if (requests == null || requests.isEmpty()) {
+            return;
+        }
+        try {
+            this.insertAll(requests);
+            this.logger.info("Stored [{}] new incoming requests", requests.size());
+        } catch (HibernateException ex) {
+            this.logger.error("ERROR storing [{}] new incoming requests: [{}]", requests.size(), ex);
+            throw ex;
+        }
+    }
+
     @Override
     public void saveOutgoingRequest(OutgoingMatchRequest request)
     {
@@ -100,6 +196,65 @@ public void saveOutgoingRequest(OutgoingMatchRequest request)
         }
     }
 
+    @Override
+    public void saveOutgoingRequests(Collection<? extends OutgoingMatchRequest> requests)
+    {
+        if (requests == null || requests.isEmpty()) {
+            return;
+        }
+        try {
+            this.insertAll(requests);
+            this.logger.info("Saved [{}] outgoing requests", requests.size());
+        } catch (HibernateException ex) {
+            this.logger.error("ERROR saving [{}] outgoing requests: [{}]", requests.size(), ex);
+            throw ex;
+        }
+    }
+
+    /**
+     * Inserts the given entities in one transaction. A stateless session is used since the entities are never read
+     * back, so nothing is kept in the session cache. The inserts are only sent in JDBC batches if the administrator
+     * enabled batching with {@code hibernate.jdbc.batch_size} in {@code hibernate.cfg.xml}; this module does not change
+     * that setting, which applies to all of XWiki's storage, and Hibernate 4 sessions can't override it.
+     */
+    private void insertAll(Collection<?> entities)
+    {
+        StatelessSession session = this.sessionFactory.getSessionFactory().openStatelessSession();
+        Transaction t = session.beginTransaction();
+        try {
+            for (Object entity : entities) {
+                session.insert(entity);
+                for (IncomingMatchedPatient matchedPatient : getMatchedPatients(entity)) {
+                    session.insert(matchedPatient);
+                }
+            }
+            t.commit();
+        } catch (HibernateException ex) {
+            if (t != null) {
+                t.rollback();
+            }
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+
+    /**
+     * Lists the local patients returned in the response to an incoming request which was just stored, so that they are
+     * stored along with the request.
+     */
+    private static List<IncomingMatchedPatient> getMatchedPatients(Object entity)
+    {
+        List<IncomingMatchedPatient> result = new ArrayList<>();
+        if (entity instanceof DefaultIncomingMatchRequest) {
+            DefaultIncomingMatchRequest request = (DefaultIncomingMatchRequest) entity;
+            for (String patientId : request.getMatchedLocalPatients()) {
+                result.add(new IncomingMatchedPatient(request.getId(), patientId));
+            }
+        }
+        return result;
+    }
+
     @Override
     public OutgoingMatchRequest getLastOutgoingRequest(String patientId, String remoteServerId)
     {
@@ -119,22 +274,30 @@ private OutgoingMatchRequest getLastOutgoingRequest(String patientId, String rem
         }
         Session session = this.sessionFactory.getSessionFactory().openSession();
         try {
-            Criteria queryCriteria = session.createCriteria(DefaultOutgoingMatchRequest.class);
+            // only the metadata is loaded, the payloads are loaded later only if needed
+            ProjectionList metadata = Projections.projectionList();
+            for (String property : LazyOutgoingMatchRequest.METADATA_PROPERTIES) {
+                metadata.add(Projections.property(property));
+            }
+            Criteria queryCriteria = session.createCriteria(DefaultOutgoingMatchRequest.class)
+                .setProjection(metadata);
             queryCriteria.add(Restrictions.eq("localReferencePatientId", patientId))
                          .add(Restrictions.eq("remoteServerId", remoteServerId));
             if (successful) {
                 queryCriteria.add(Restrictions.eq("replyHTTPStatus", ApiConfiguration.HTTP_OK));
             }
 
-            OutgoingMatchRequest data = (OutgoingMatchRequest) queryCriteria
+            Object[] row = (Object[]) queryCriteria
                 .addOrder(Property.forName("requestTime").desc())
                 .setMaxResults(1)
                 .uniqueResult();
 
-            if (data == null) {
+            OutgoingMatchRequest data = null;
+            if (row == null) {
                 this.logger.info("Found no {}match requests to server [{}] for patient [{}]",
                     (successful ? "successful " : ""), remoteServerId, patientId);
             } else {
+                data = new LazyOutgoingMatchRequest(row, this.sessionFactory);
                 this.logger.info("Found a {}match request to server [{}] for patient [{}]",
                     (successful ? "successful " : ""), remoteServerId, patientId);
             }
@@ -149,6 +312,88 @@ private OutgoingMatchRequest getLastOutgoingRequest(String patientId, String rem
         return null;
     }
 
+    @Override
+    @SuppressWarnings("unchecked")
+    public LastOutgoingRequests getLastOutgoingRequests(String remoteServerId, String patientId)
+    {
+        OutgoingMatchRequest lastRequest = null;
+        OutgoingMatchRequest lastSuccessfulRequest = null;
+        if (patientId == null || remoteServerId == null) {
+            return new LastOutgoingRequests(null, null);
+        }
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Query query = session.createQuery(String.format(LAST_REQUESTS_QUERY,
+                LazyOutgoingMatchRequest.getMetadataSelection("req")));
+            query.setParameter("patientId", patientId);
+            query.setParameter("serverId", remoteServerId);
+            query.setParameter("ok", ApiConfiguration.HTTP_OK);
+            for (Object[] row : (List<Object[]>) query.list()) {
+                OutgoingMatchRequest request = new LazyOutgoingMatchRequest(row, this.sessionFactory);
+                if (lastRequest == null) {
+                    lastRequest = request;
+                }
+                if (lastSuccessfulRequest == null && ApiConfiguration.HTTP_OK.equals(request.getRequestStatusCode())) {
+                    lastSuccessfulRequest = request;
+                }
+            }
+        } catch (HibernateException ex) {
+            this.logger.error("ERROR loading last outgoing requests for local patient [{}] to server [{}]: {}",
+                patientId, remoteServerId, ex);
+        } finally {
+            session.close();
+        }
+        return new LastOutgoingRequests(lastRequest, lastSuccessfulRequest);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public Map<String, Map<String, LastOutgoingRequests>> getLastOutgoingRequests(Collection<String> remoteServerIds,
+        Collection<String> patientIds)
+    {
+        Map<String, Map<String, LastOutgoingRequests>> result = new HashMap<>();
+        if (remoteServerIds == null || remoteServerIds.isEmpty() || patientIds == null || patientIds.isEmpty()) {
+            return result;
+        }
+        List<String> allPatientIds = new ArrayList<>(new LinkedHashSet<>(patientIds));
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Query query = session.createQuery(String.format(BULK_LAST_REQUESTS_QUERY,
+                LazyOutgoingMatchRequest.getMetadataSelection("req")));
+            query.setParameterList("serverIds", remoteServerIds);
+            query.setParameter("ok", ApiConfiguration.HTTP_OK);
+            for (int start = 0; start < allPatientIds.size(); start += PATIENTS_PER_QUERY) {
+                query.setParameterList("patientIds",
+                    allPatientIds.subList(start, Math.min(start + PATIENTS_PER_QUERY, allPatientIds.size())));
+                // rows are sorted newest first, so the first row of each patient and server is the last request
+                for (Object[] row : (List<Object[]>) query.list()) {
+                    OutgoingMatchRequest request = new LazyOutgoingMatchRequest(row, this.sessionFactory);
+                    String patientId = request.getLocalReferencePatientId();
+                    String serverId = request.getRemoteServerId();
+                    Map<String, LastOutgoingRequests> patientRequests = result.get(patientId);
+                    if (patientRequests == null) {
+                        patientRequests = new HashMap<>();
+                        result.put(patientId, patientRequests);
+                    }
+                    LastOutgoingRequests serverRequests = patientRequests.get(serverId);
+                    boolean successful = ApiConfiguration.HTTP_OK.equals(request.getRequestStatusCode());
+                    if (serverRequests == null) {
+                        patientRequests.put(serverId, new LastOutgoingRequests(request, successful ? request : null));
+                    } else if (successful && serverRequests.getLastSuccessfulRequest() == null) {
+                        patientRequests.put(serverId,
+                            new LastOutgoingRequests(serverRequests.getLastRequest(), request));
+                    }
+                }
+            }
+        } catch (HibernateException ex) {
+            this.logger.error("ERROR loading last outgoing requests for [{}] local patients: {}",
+                allPatientIds.size(), ex);
+        } finally {
+            session.close();
+        }
+        return result;
+    }
+
     @Override
     public void deleteMatchesForLocalPatient(String patientId)
     {
@@ -176,4 +421,145 @@ public void deleteMatchesForLocalPatient(String patientId)
             session.close();
         }
     }
+
+    @Override
+    public void scheduleDeletionForLocalPatient(String patientId)
+    {
+        if (patientId == null) {
+            return;
+        }
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            session.save(new PendingPatientDeletion(patientId));
+            t.commit();
+        } catch (HibernateException ex) {
+            this.logger.error("ERROR scheduling the deletion of the requests for local patient [{}]: {}", patientId,
+                ex);
+            if (t != null) {
+                t.rollback();
+            }
+            // at least delete the outgoing requests right away
+            this.deleteMatchesForLocalPatient(patientId);
+            return;
+        } finally {
+            session.close();
+        }
+        this.resumePendingDeletions();
+    }
+
+    @Override
+    public void resumePendingDeletions()
+    {
+        if (this.deletionScheduled.compareAndSet(false, true)) {
+            this.deletionExecutor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    processPendingDeletions();
+                }
+            });
+        }
+    }
+
+    private void processPendingDeletions()
+    {
+        // deletions scheduled from now on need another run, since they may be missed by the queries below
+        this.deletionScheduled.set(false);
+        try {
+            List<PendingPatientDeletion> pending = this.getPendingDeletions();
+            while (!pending.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                for (PendingPatientDeletion deletion : pending) {
+                    this.deleteRequestsForLocalPatient(deletion.getLocalPatientId());
+                    if (Thread.currentThread().isInterrupted()) {
+                        // not done yet, will be resumed on the next startup
+                        return;
+                    }
+                    this.deleteEntity(deletion);
+                }
+                pending = this.getPendingDeletions();
+            }
+        } catch (HibernateException ex) {
+            this.logger.error("ERROR deleting the requests of deleted local patients: {}", ex.getMessage(), ex);
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private List<PendingPatientDeletion> getPendingDeletions()
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            return session.createCriteria(PendingPatientDeletion.class)
+                .addOrder(Property.forName("id").asc())
+                .setMaxResults(PENDING_DELETIONS_CHUNK_SIZE)
+                .list();
+        } finally {
+            session.close();
+        }
+    }
+
+    private void deleteRequestsForLocalPatient(String patientId)
+    {
+        int outgoing = this.deleteInChunks(DefaultOutgoingMatchRequest.class, OUTGOING_FOR_PATIENT_QUERY, patientId);
+        int incoming = this.deleteInChunks(DefaultIncomingMatchRequest.class,
+            IncomingMatchedPatient.REQUESTS_FOR_PATIENT_QUERY, patientId);
+        this.logger.info("Removed [{}] outgoing and [{}] incoming stored requests for local patient [{}]", outgoing,
+            incoming, patientId);
+    }
+
+    @SuppressWarnings("unchecked")
+    private int deleteInChunks(Class<? extends AbstractSearchRequest> entityClass, String idsQuery, String patient)
+    {
+        int deleted = 0;
+        while (!Thread.currentThread().isInterrupted()) {
+            List<Long> ids;
+            Session session = this.sessionFactory.getSessionFactory().openSession();
+            try {
+                Query query = session.createQuery(idsQuery);
+                query.setParameter("patient", patient);
+                query.setMaxResults(DELETE_CHUNK_SIZE);
+                ids = query.list();
+            } finally {
+                session.close();
+            }
+            if (ids.isEmpty()) {
+                break;
+            }
+
+            session = this.sessionFactory.getSessionFactory().openSession();
+            Transaction t = session.beginTransaction();
+            try {
+                if (DefaultIncomingMatchRequest.class.equals(entityClass)) {
+                    session.createQuery(IncomingMatchedPatient.DELETE_FOR_REQUESTS_QUERY)
+                        .setParameterList("ids", ids).executeUpdate();
+                }
+                Query delete = session.createQuery(String.format(DELETE_BY_IDS_QUERY, entityClass.getSimpleName()));
+                delete.setParameterList("ids", ids);
+                deleted += delete.executeUpdate();
+                t.commit();
+            } catch (HibernateException ex) {
+                t.rollback();
+                throw ex;
+            } finally {
+                session.close();
+            }
+        }
+        return deleted;
+    }
+
+    private void deleteEntity(Object entity)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            session.delete(entity);
+            t.commit();
+        } catch (HibernateException ex) {
+            t.rollback();
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
 }
@@ -0,0 +1,91 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate.internal;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Index;
+
+/**
+ * A local patient returned as a match in the response to an incoming request. These are stored in their own indexed
+ * table, so that the incoming requests referencing a local patient can be found, e.g. when the patient is deleted,
+ * without scanning or reading the stored responses.
+ *
+ * @version $Id$
+ */
+@Entity
+@Table(name = "remote_matching_incoming_matched_patients")
+@org.hibernate.annotations.Table(appliesTo = "remote_matching_incoming_matched_patients", indexes = {
+    @Index(name = "incomingmme_matchedPatientIndex", columnNames = { "localPatientId" }),
+    @Index(name = "incomingmme_matchedRequestIndex", columnNames = { "requestId" }) })
+public class IncomingMatchedPatient
+{
+    /** Deletes the rows of the given incoming requests, which must be done before deleting the requests. */
+    static final String DELETE_FOR_REQUESTS_QUERY = "delete from IncomingMatchedPatient where requestId in (:ids)";
+
+    /** Lists the incoming requests which returned a local patient. */
+    static final String REQUESTS_FOR_PATIENT_QUERY =
+        "select distinct m.requestId from IncomingMatchedPatient m where m.localPatientId = :patient";
+
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Basic
+    private Long requestId;
+
+    @Basic
+    private String localPatientId;
+
+    /**
+     * Hibernate requires a no-args constructor
+     */
+    protected IncomingMatchedPatient()
+    {
+    }
+
+    /**
+     * @param requestId the identifier of the stored incoming request
+     * @param localPatientId the identifier of the local patient returned as a match
+     */
+    public IncomingMatchedPatient(Long requestId, String localPatientId)
+    {
+        this.requestId = requestId;
+        this.localPatientId = localPatientId;
+    }
+
+    /**
+     * @return the identifier of the stored incoming request
+     */
+    public Long getRequestId()
+    {
+        return this.requestId;
+    }
+
+    /**
+     * @return the identifier of the local patient returned as a match
+     */
+    public String getLocalPatientId()
+    {
+        return this.localPatientId;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate.internal;
+
+import java.sql.Timestamp;
+
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * A stored outgoing request loaded without its request and response payloads, which can be several megabytes large.
+ * Each payload is only loaded from the database the first time it is needed, e.g. by {@link #getResponseJSON()} or
+ * {@link #gotValidReply()}, so that callers only interested in the request time or status never load them.
+ *
+ * Instances are read-only views of the stored data, and can't be saved.
+ *
+ * @version $Id$
+ */
+final class LazyOutgoingMatchRequest extends DefaultOutgoingMatchRequest
+{
+    /** The properties loaded upfront, in the order expected by the constructor. */
+    static final String[] METADATA_PROPERTIES = { "id", "remoteServerId", "apiVersionUsed", "requestTime",
+        "localReferencePatientId", "replyHTTPStatus", "validReply" };
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(LazyOutgoingMatchRequest.class);
+
+    private static final String PAYLOAD_QUERY = "select req.%1$sData, req.%1$s from DefaultOutgoingMatchRequest req"
+        + " where req.id = :id";
+
+    private final transient HibernateSessionFactory sessionFactory;
+
+    private transient String request;
+
+    private transient boolean requestLoaded;
+
+    private transient String response;
+
+    private transient boolean responseLoaded;
+
+    /**
+     * @param metadata the values of the {@link #METADATA_PROPERTIES}, as returned by a projection query
+     * @param sessionFactory used for loading the payloads when needed
+     */
+    LazyOutgoingMatchRequest(Object[] metadata, HibernateSessionFactory sessionFactory)
+    {
+        super((Long) metadata[0], (String) metadata[1], (String) metadata[2], (Timestamp) metadata[3],
+            (String) metadata[4], (Integer) metadata[5], (Boolean) metadata[6]);
+        this.sessionFactory = sessionFactory;
+    }
+
+    /**
+     * @param alias the alias of the queried {@link DefaultOutgoingMatchRequest} entity
+     * @return the HQL select list of the {@link #METADATA_PROPERTIES}, e.g. {@code req.id, req.remoteServerId, ...}
+     */
+    static String getMetadataSelection(String alias)
+    {
+        StringBuilder selection = new StringBuilder();
+        for (String property : METADATA_PROPERTIES) {
+            if (selection.length() > 0) {
+                selection.append(", ");
+            }
+            selection.append(alias).append('.').append(property);
+        }
+        return selection.toString();
+    }
+
+    @Override
+    protected synchronized String getRequest()
+    {
+        if (!this.requestLoaded) {
+            this.request = this.loadPayload("request");
+            this.requestLoaded = true;
+        }
+        return this.request;
+    }
+
+    @Override
+    protected synchronized String getResponse()
+    {
+        if (!this.responseLoaded) {
+            this.response = this.loadPayload("response");
+            this.responseLoaded = true;
+        }
+        return this.response;
+    }
+
+    private String loadPayload(String payload)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Query query = session.createQuery(String.format(PAYLOAD_QUERY, payload));
+            query.setParameter("id", this.getId());
+            Object[] columns = (Object[]) query.uniqueResult();
+            if (columns == null) {
+                LOGGER.warn("Stored outgoing request [{}] was deleted before its {} could be loaded", this.getId(),
+                    payload);
+                return null;
+            }
+            // rows stored before compression was introduced may still have the payload as plain text
+            return (columns[0] != null) ? PayloadCompression.decompress((byte[]) columns[0]) : (String) columns[1];
+        } catch (HibernateException ex) {
+            LOGGER.warn("Failed to load the {} of stored outgoing request [{}]: {}", payload, this.getId(),
+                ex.getMessage());
+            return null;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -68,5 +68,7 @@ public void onEvent(Event event, Object source, Object data)
         Configuration configuration = this.sessionFactory.getConfiguration();
         configuration.addAnnotatedClass(DefaultIncomingMatchRequest.class);
         configuration.addAnnotatedClass(DefaultOutgoingMatchRequest.class);
+        configuration.addAnnotatedClass(PendingPatientDeletion.class);
+        configuration.addAnnotatedClass(IncomingMatchedPatient.class);
     }
 }
@@ -0,0 +1,124 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate.internal;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Converts the request and response payloads stored for audit purposes to and from their compressed binary form. The
+ * first byte of the binary form is a format marker, so that other formats can be added later without having to
+ * migrate the rows which were already stored.
+ *
+ * @version $Id$
+ */
+final class PayloadCompression
+{
+    /** Format marker for UTF-8 text compressed with gzip. */
+    static final byte FORMAT_GZIP = 1;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(PayloadCompression.class);
+
+    private PayloadCompression()
+    {
+        // utility class
+    }
+
+    /**
+     * Compresses a payload.
+     *
+     * @param payload the text to compress, may be {@code null}
+     * @return the compressed payload, prefixed by its format marker, or {@code null} if {@code payload} is
+     *         {@code null}
+     */
+    static byte[] compress(String payload)
+    {
+        if (payload == null) {
+            return null;
+        }
+        byte[] text = payload.getBytes(StandardCharsets.UTF_8);
+        // JSON usually compresses to less than a fifth of its size
+        ByteArrayOutputStream result = new ByteArrayOutputStream(text.length / 5 + 32);
+        result.write(FORMAT_GZIP);
+        try (OutputStream gzip = new GZIPOutputStream(result)) {
+            gzip.write(text);
+        } catch (IOException ex) {
+            // never happens when writing to memory
+            throw new IllegalStateException(ex);
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Opens a writer which compresses a payload as it is being written, so that large payloads never have to be held
+     * in memory as text. The result is the same as {@link #compress(String)}, and is complete once the writer is
+     * closed.
+     *
+     * @param target where the compressed payload, prefixed by its format marker, is written
+     * @return a writer for the text of the payload
+     * @throws IOException if writing to {@code target} failed
+     */
+    static Writer openWriter(OutputStream target) throws IOException
+    {
+        target.write(FORMAT_GZIP);
+        return new OutputStreamWriter(new GZIPOutputStream(target, BUFFER_SIZE), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Restores a payload compressed by {@link #compress(String)}.
+     *
+     * @param data the compressed payload, prefixed by its format marker, may be {@code null}
+     * @return the original text, or {@code null} if {@code data} is {@code null}, empty, or can't be decompressed; a
+     *         warning is logged in the last two cases
+     */
+    static String decompress(byte[] data)
+    {
+        if (data == null) {
+            return null;
+        }
+        if (data.length == 0 || data[0] != FORMAT_GZIP) {
+            LOGGER.warn("Ignoring a stored payload in an unknown format, [{}] bytes long", data.length);
+            return null;
+        }
+        try (InputStream gzip = new GZIPInputStream(new ByteArrayInputStream(data, 1, data.length - 1))) {
+            ByteArrayOutputStream text = new ByteArrayOutputStream(data.length * 5);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = gzip.read(buffer)) != -1) {
+                text.write(buffer, 0, read);
+            }
+            return new String(text.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException ex) {
+            LOGGER.warn("Ignoring a corrupted stored payload, [{}] bytes long: {}", data.length, ex.getMessage());
+            return null;
+        }
+    }
+}
@@ -0,0 +1,186 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate.internal;
+
+import org.xwiki.bridge.event.ApplicationReadyEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+import org.hibernate.HibernateException;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.slf4j.Logger;
+
+import com.xpn.xwiki.store.hibernate.HibernateSessionFactory;
+
+/**
+ * Compresses the request and response payloads of the audit rows stored before payload compression was introduced.
+ * The rows are processed in the background after startup, in small chunks, each in its own transaction, so that the
+ * tables are never locked for long; rows which were already compressed are skipped, so the migration can safely be
+ * interrupted and resumed on the next startup. Only the payload columns are read and updated, and rows deleted in the
+ * meantime, e.g. by the audit retention job, are simply skipped.
+ *
+ * @version $Id$
+ */
+@Component
+@Named("remote-matching-payload-compression-migrator")
+@Singleton
+public class PayloadCompressionMigrator extends AbstractEventListener implements Initializable, Disposable
+{
+    private static final int CHUNK_SIZE = 100;
+
+    private static final String UNCOMPRESSED_ROWS_QUERY = "select req.id, req.request, req.response from %s req"
+        + " where req.id > :lastId and (req.request is not null or req.response is not null) order by req.id";
+
+    private static final String REQUEST_UPDATE = "requestData = :requestData, request = null";
+
+    private static final String RESPONSE_UPDATE = "responseData = :responseData, response = null";
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private HibernateSessionFactory sessionFactory;
+
+    private ExecutorService executor;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public PayloadCompressionMigrator()
+    {
+        super("remote-matching-payload-compression-migrator", new ApplicationReadyEvent());
+    }
+
+    @Override
+    public void initialize()
+    {
+        this.executor = Executors.newSingleThreadExecutor(
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-payload-compression-%d").daemon(true)
+                .build());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        this.executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                migrate(DefaultOutgoingMatchRequest.class);
+                migrate(DefaultIncomingMatchRequest.class);
+            }
+        });
+    }
+
+    @Override
+    public void dispose()
+    {
+        // an interrupted migration is resumed on the next startup
+        this.executor.shutdownNow();
+    }
+
+    private void migrate(Class<? extends AbstractSearchRequest> entityClass)
+    {
+        long lastId = 0;
+        int migrated = 0;
+        try {
+            List<Object[]> chunk = this.getNextChunk(entityClass, lastId);
+            while (!chunk.isEmpty() && !Thread.currentThread().isInterrupted()) {
+                migrated += this.compress(entityClass, chunk);
+                lastId = (Long) chunk.get(chunk.size() - 1)[0];
+                chunk = this.getNextChunk(entityClass, lastId);
+            }
+        } catch (HibernateException ex) {
+            this.logger.error("Failed to compress the stored payloads of [{}] after id [{}]: {}",
+                entityClass.getSimpleName(), lastId, ex.getMessage(), ex);
+        }
+        if (migrated > 0) {
+            this.logger.info("Compressed the stored payloads of [{}] [{}] rows", migrated,
+                entityClass.getSimpleName());
+        }
+    }
+
+    /**
+     * @return the identifier, request and response of the next rows which still have uncompressed payloads
+     */
+    @SuppressWarnings("unchecked")
+    private List<Object[]> getNextChunk(Class<? extends AbstractSearchRequest> entityClass, long lastId)
+    {
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        try {
+            Query query = session.createQuery(String.format(UNCOMPRESSED_ROWS_QUERY, entityClass.getSimpleName()));
+            query.setParameter("lastId", lastId);
+            query.setMaxResults(CHUNK_SIZE);
+            return query.list();
+        } finally {
+            session.close();
+        }
+    }
+
+    private int compress(Class<? extends AbstractSearchRequest> entityClass, List<Object[]> chunk)
+    {
+        int compressed = 0;
+        Session session = this.sessionFactory.getSessionFactory().openSession();
+        Transaction t = session.beginTransaction();
+        try {
+            for (Object[] row : chunk) {
+                String request = (String) row[1];
+                String response = (String) row[2];
+                List<String> updates = new ArrayList<>(2);
+                if (request != null) {
+                    updates.add(REQUEST_UPDATE);
+                }
+                if (response != null) {
+                    updates.add(RESPONSE_UPDATE);
+                }
+                Query update = session.createQuery("update " + entityClass.getSimpleName() + " set "
+                    + String.join(", ", updates) + " where id = :id");
+                update.setParameter("id", row[0]);
+                if (request != null) {
+                    update.setParameter("requestData", PayloadCompression.compress(request));
+                }
+                if (response != null) {
+                    update.setParameter("responseData", PayloadCompression.compress(response));
+                }
+                // rows deleted since the chunk was read are not updated, and are simply skipped
+                compressed += update.executeUpdate();
+            }
+            t.commit();
+            return compressed;
+        } catch (HibernateException ex) {
+            t.rollback();
+            throw ex;
+        } finally {
+            session.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.hibernate.internal;
+
+import java.sql.Timestamp;
+
+import javax.persistence.Basic;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+/**
+ * A deleted local patient whose stored match requests still have to be removed. Pending deletions are stored, so that
+ * removals interrupted by a restart are resumed on the next startup.
+ *
+ * @version $Id$
+ */
+@Entity
+@Table(name = "remote_matching_pending_deletions")
+public class PendingPatientDeletion
+{
+    @Id
+    @GeneratedValue
+    private Long id;
+
+    @Basic
+    private String localPatientId;
+
+    @Basic
+    private Timestamp requestTime;
+
+    /**
+     * Hibernate requires a no-args constructor
+     */
+    protected PendingPatientDeletion()
+    {
+    }
+
+    /**
+     * @param localPatientId the identifier of the deleted local patient
+     */
+    public PendingPatientDeletion(String localPatientId)
+    {
+        this.localPatientId = localPatientId;
+        this.requestTime = new Timestamp(System.currentTimeMillis());
+    }
+
+    /**
+     * @return the identifier of the deleted local patient
+     */
+    public String getLocalPatientId()
+    {
+        return this.localPatientId;
+    }
+
+    /**
+     * @return when the deletion was requested
+     */
+    public Timestamp getRequestTime()
+    {
+        return this.requestTime;
+    }
+}
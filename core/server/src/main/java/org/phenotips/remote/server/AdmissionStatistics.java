@@ -0,0 +1,114 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server;
+
+/**
+ * A snapshot of the admission statistics of the incoming requests sent by one remote server, as reported by
+ * {@link IncomingRequestAdmissionController#getStatistics()}.
+ *
+ * @version $Id$
+ */
+public final class AdmissionStatistics
+{
+    private final int inFlight;
+
+    private final int queued;
+
+    private final long admitted;
+
+    private final long rejected;
+
+    private final long averageQueueTimeMs;
+
+    private final long averageProcessingTimeMs;
+
+    /**
+     * @param inFlight the number of requests being processed
+     * @param queued the number of requests waiting to be processed
+     * @param admitted the number of requests admitted so far
+     * @param rejected the number of requests rejected so far
+     * @param averageQueueTimeMs the average time the admitted requests waited in the queue, in milliseconds
+     * @param averageProcessingTimeMs the average time processing a request took, in milliseconds
+     */
+    public AdmissionStatistics(int inFlight, int queued, long admitted, long rejected, long averageQueueTimeMs,
+        long averageProcessingTimeMs)
+    {
+        this.inFlight = inFlight;
+        this.queued = queued;
+        this.admitted = admitted;
+        this.rejected = rejected;
+        this.averageQueueTimeMs = averageQueueTimeMs;
+        this.averageProcessingTimeMs = averageProcessingTimeMs;
+    }
+
+    /**
+     * @return the number of requests being processed
+     */
+    public int getInFlight()
+    {
+        return this.inFlight;
+    }
+
+    /**
+     * @return the number of requests waiting to be processed
+     */
+    public int getQueued()
+    {
+        return this.queued;
+    }
+
+    /**
+     * @return the number of requests admitted so far
+     */
+    public long getAdmitted()
+    {
+        return this.admitted;
+    }
+
+    /**
+     * @return the number of requests rejected so far
+     */
+    public long getRejected()
+    {
+        return this.rejected;
+    }
+
+    /**
+     * @return the average time the admitted requests waited in the queue, in milliseconds
+     */
+    public long getAverageQueueTimeMs()
+    {
+        return this.averageQueueTimeMs;
+    }
+
+    /**
+     * @return the average time processing a request took, in milliseconds
+     */
+    public long getAverageProcessingTimeMs()
+    {
+        return this.averageProcessingTimeMs;
+    }
+
+    @Override
+    public String toString()
+    {
+        return "inFlight=" + this.inFlight + ", queued=" + this.queued + ", admitted=" + this.admitted
+            + ", rejected=" + this.rejected + ", averageQueueTimeMs=" + this.averageQueueTimeMs
+            + ", averageProcessingTimeMs=" + this.averageProcessingTimeMs;
+    }
+}
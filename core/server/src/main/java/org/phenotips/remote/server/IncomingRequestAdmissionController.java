@@ -0,0 +1,61 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.Map;
+
+/**
+ * Limits how many incoming match requests from each remote server are processed at the same time, so that a remote
+ * server sending many requests at once can not take all the matching capacity away from the local users and from the
+ * other remote servers. Requests over the limit wait in a short per-server queue; requests which find the queue full,
+ * or which wait too long, are rejected and should be answered with HTTP 429.
+ *
+ * @version $Id$
+ */
+@Role
+public interface IncomingRequestAdmissionController
+{
+    /**
+     * Waits until a request from the given server may be processed. Each successful call must be followed by a call to
+     * {@link #release(String, long)} once the request has been processed.
+     *
+     * @param remoteServerId the identifier of the authenticated remote server which sent the request
+     * @return {@code true} if the request may be processed, {@code false} if it must be rejected
+     */
+    boolean admit(String remoteServerId);
+
+    /**
+     * Signals that an admitted request was processed, letting the next queued request from the same server in.
+     *
+     * @param remoteServerId the identifier of the remote server which sent the request
+     * @param processingTimeMs how long processing the request took, in milliseconds
+     */
+    void release(String remoteServerId, long processingTimeMs);
+
+    /**
+     * @return how long a remote server should wait before sending a rejected request again, in seconds
+     */
+    int getRetryAfterSeconds();
+
+    /**
+     * @return the current admission statistics of each remote server which sent requests, by server identifier
+     */
+    Map<String, AdmissionStatistics> getStatistics();
+}
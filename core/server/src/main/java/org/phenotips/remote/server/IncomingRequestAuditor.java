@@ -0,0 +1,40 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server;
+
+import org.phenotips.remote.api.IncomingMatchRequest;
+
+import org.xwiki.component.annotation.Role;
+
+/**
+ * Stores incoming requests and the replies sent to them for audit purposes, without delaying the replies.
+ *
+ * @version $Id$
+ */
+@Role
+public interface IncomingRequestAuditor
+{
+    /**
+     * Schedules an incoming request, with its reply if any, to be stored. The request is usually stored in the
+     * background, shortly after this method returns; when the background writer can not keep up the request is stored
+     * before this method returns, so that no audit data is ever dropped.
+     *
+     * @param request the request to store
+     */
+    void audit(IncomingMatchRequest request);
+}
@@ -0,0 +1,48 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server;
+
+import org.xwiki.component.annotation.Role;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+
+/**
+ * Runs the processing of incoming match requests on a dedicated pool of matching threads, separate from the servlet
+ * container threads, so that the number of searches running at the same time is bounded and a request which takes too
+ * long can be answered with an error instead of keeping the remote server waiting indefinitely.
+ *
+ * @version $Id$
+ */
+@Role
+public interface IncomingRequestExecutor
+{
+    /**
+     * Schedules a task on a matching thread. The task runs with a copy of the calling thread's execution context.
+     *
+     * @param task the task processing an incoming request
+     * @param <T> the type of the task result
+     * @return the pending result of the task
+     */
+    <T> Future<T> submit(Callable<T> task);
+
+    /**
+     * @return how long the reply to an incoming request should be waited for, in milliseconds
+     */
+    long getTimeoutMs();
+}
@@ -0,0 +1,74 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.events;
+
+import org.phenotips.data.Patient;
+import org.phenotips.data.events.PatientChangedEvent;
+import org.phenotips.data.events.PatientDeletingEvent;
+import org.phenotips.remote.server.internal.IncomingResponseCache;
+
+import org.xwiki.bridge.event.DocumentCreatedEvent;
+import org.xwiki.bridge.event.DocumentUpdatedEvent;
+import org.xwiki.component.annotation.Component;
+import org.xwiki.observation.AbstractEventListener;
+import org.xwiki.observation.event.Event;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import com.xpn.xwiki.doc.XWikiDocument;
+
+/**
+ * Empties the {@link IncomingResponseCache} whenever a local patient is created, modified or deleted, since any such
+ * change may change the replies to incoming match requests. Besides the patient events, the creation and update of
+ * patient documents are listened to, so that patients created with all their data at once, and changes made directly to
+ * the document, e.g. granting or revoking the matching consent, are not missed.
+ *
+ * @version $Id$
+ */
+@Component
+@Named("remote-matching-incoming-response-cache-invalidator")
+@Singleton
+public class IncomingResponseCacheInvalidator extends AbstractEventListener
+{
+    @Inject
+    private IncomingResponseCache responseCache;
+
+    /** Default constructor, sets up the listener name and the list of events to subscribe to. */
+    public IncomingResponseCacheInvalidator()
+    {
+        super("remote-matching-incoming-response-cache-invalidator", new PatientChangedEvent(),
+            new PatientDeletingEvent(), new DocumentCreatedEvent(), new DocumentUpdatedEvent());
+    }
+
+    @Override
+    public void onEvent(Event event, Object source, Object data)
+    {
+        if ((event instanceof DocumentCreatedEvent || event instanceof DocumentUpdatedEvent)
+            && !isPatientDocument(source)) {
+            return;
+        }
+        this.responseCache.invalidateAll();
+    }
+
+    private static boolean isPatientDocument(Object source)
+    {
+        return source instanceof XWikiDocument && ((XWikiDocument) source).getXObject(Patient.CLASS_REFERENCE) != null;
+    }
+}
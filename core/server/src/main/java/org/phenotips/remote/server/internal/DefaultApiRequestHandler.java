@@ -21,14 +21,23 @@
 import org.phenotips.remote.api.ApiDataConverter;
 import org.phenotips.remote.common.ApiFactory;
 import org.phenotips.remote.common.ApplicationConfiguration;
-import org.phenotips.remote.common.RemoteConfigurationManager;
+import org.phenotips.remote.common.RemoteServerConfig;
+import org.phenotips.remote.common.RemoteServerRegistry;
 import org.phenotips.remote.server.ApiRequestHandler;
+import org.phenotips.remote.server.IncomingRequestAdmissionController;
+import org.phenotips.remote.server.IncomingRequestExecutor;
 import org.phenotips.remote.server.SearchRequestProcessor;
 
 import org.xwiki.component.annotation.Component;
 import org.xwiki.rest.XWikiResource;
 import org.xwiki.rest.XWikiRestException;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.regex.Pattern;
 
 import javax.inject.Inject;
@@ -44,7 +53,6 @@
 import com.xpn.xwiki.XWiki;
 import com.xpn.xwiki.XWikiContext;
 import com.xpn.xwiki.doc.XWikiDocument;
-import com.xpn.xwiki.objects.BaseObject;
 
 /**
  * Resource for listing full patient phenotype.
@@ -65,7 +73,13 @@ public class DefaultApiRequestHandler extends XWikiResource implements ApiReques
     private ApiFactory apiFactory;
 
     @Inject
-    private RemoteConfigurationManager remoteConfigurationManager;
+    private RemoteServerRegistry remoteServerRegistry;
+
+    @Inject
+    private IncomingRequestAdmissionController admissionController;
+
+    @Inject
+    private IncomingRequestExecutor requestExecutor;
 
     @Override
     public Response matchPost(String json) throws XWikiRestException
@@ -90,19 +104,22 @@ public Response matchPost(String json) throws XWikiRestException
                 this.logger.debug("Request version: <<{}>>", apiVersion);
 
                 String requestKey = httpRequest.getHeader(ApiConfiguration.HTTPHEADER_KEY_PARAMETER);
-                BaseObject remoteServerConfiguration = this.remoteConfigurationManager
-                    .getRemoteConfigurationGivenRemoteIPAndToken(httpRequest.getRemoteAddr(), requestKey, context);
+                RemoteServerConfig remoteServerConfiguration =
+                    this.remoteServerRegistry.authenticate(httpRequest.getRemoteAddr(), requestKey);
 
                 if (remoteServerConfiguration == null) {
+                    this.logger.error("Remote server token validation failed for remote IP {}",
+                        httpRequest.getRemoteAddr());
                     jsonResponse = new JSONObject();
                     jsonResponse.put(ApiConfiguration.REPLY_JSON_HTTP_STATUS, ApiConfiguration.HTTP_UNAUTHORIZED);
                     jsonResponse.put(ApiConfiguration.REPLY_JSON_ERROR_DESCRIPTION, "unauthorized server");
                 } else {
-                    String remoteServerId =
-                        remoteServerConfiguration.getStringValue(ApplicationConfiguration.CONFIGDOC_REMOTE_SERVER_ID);
+                    String remoteServerId = remoteServerConfiguration.getServerId();
+                    this.logger.info("Remote server token validated OK for server [{}] (remote IP {})",
+                        remoteServerConfiguration.getName(), httpRequest.getRemoteAddr());
 
-                    jsonResponse = this.searchRequestProcessor.processHTTPSearchRequest(
-                        apiVersionSpecificConverter, json, remoteServerId, httpRequest);
+                    jsonResponse = this.processAdmittedRequest(apiVersionSpecificConverter, json, remoteServerId,
+                        httpRequest);
                 }
             } catch (IllegalArgumentException ex) {
                 this.logger.error("Incorrect incoming request: unsupported API version: [{}]", apiVersion);
@@ -129,6 +146,10 @@ public Response matchPost(String json) throws XWikiRestException
             }
 
             ResponseBuilder response = Response.status(status);
+            if (ApiConfiguration.HTTP_TOO_MANY_REQUESTS.equals(status)) {
+                response.header(ApiConfiguration.HTTPHEADER_RETRY_AFTER,
+                    this.admissionController.getRetryAfterSeconds());
+            }
             response.entity(jsonResponse.toString());
             response.type(this.generateContentType(apiVersion));
             return response.build();
@@ -138,6 +159,64 @@ public Response matchPost(String json) throws XWikiRestException
         }
     }
 
+    /**
+     * Processes the request on a matching thread once the admission controller lets it in, so that one remote server
+     * can not take all the matching capacity, and so that a search which takes too long gets an error reply.
+     */
+    private JSONObject processAdmittedRequest(final ApiDataConverter apiVersionSpecificConverter, final String json,
+        final String remoteServerId, final HttpServletRequest httpRequest) throws Exception
+    {
+        if (!this.admissionController.admit(remoteServerId)) {
+            JSONObject jsonResponse = new JSONObject();
+            jsonResponse.put(ApiConfiguration.REPLY_JSON_HTTP_STATUS, ApiConfiguration.HTTP_TOO_MANY_REQUESTS);
+            jsonResponse.put(ApiConfiguration.REPLY_JSON_ERROR_DESCRIPTION, "too many requests");
+            return jsonResponse;
+        }
+
+        // the admission is released by the task once it is done, or here if the task never gets to run
+        final AtomicBoolean started = new AtomicBoolean();
+        Future<JSONObject> reply;
+        try {
+            reply = this.requestExecutor.submit(new Callable<JSONObject>()
+            {
+                @Override
+                public JSONObject call() throws Exception
+                {
+                    if (!started.compareAndSet(false, true)) {
+                        return null;
+                    }
+                    long start = System.currentTimeMillis();
+                    try {
+                        return DefaultApiRequestHandler.this.searchRequestProcessor.processHTTPSearchRequest(
+                            apiVersionSpecificConverter, json, remoteServerId, httpRequest);
+                    } finally {
+                        DefaultApiRequestHandler.this.admissionController.release(remoteServerId,
+                            System.currentTimeMillis() - start);
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ex) {
+            this.admissionController.release(remoteServerId, 0);
+            throw ex;
+        }
+
+        try {
+            return reply.get(this.requestExecutor.getTimeoutMs(), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException | InterruptedException ex) {
+            if (ex instanceof InterruptedException) {
+                Thread.currentThread().interrupt();
+            }
+            // a search which already started is left to finish, since interrupting it could leave the stored
+            // request or the database connection in an inconsistent state; it releases its admission when done
+            reply.cancel(false);
+            if (started.compareAndSet(false, true)) {
+                this.admissionController.release(remoteServerId, 0);
+            }
+            this.logger.error("Incoming request from [{}] was not processed in time", remoteServerId);
+            return apiVersionSpecificConverter.generateInternalServerErrorResponse("request processing timed out");
+        }
+    }
+
     private String parseApiVersion(String apiHeader)
     {
         String result = apiHeader.replaceAll("^" + Pattern.quote(ApiConfiguration.HTTPHEADER_CONTENT_TYPE_PREFIX)
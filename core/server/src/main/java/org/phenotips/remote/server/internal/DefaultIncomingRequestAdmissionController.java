@@ -0,0 +1,226 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.internal;
+
+import org.phenotips.remote.server.AdmissionStatistics;
+import org.phenotips.remote.server.IncomingRequestAdmissionController;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of {@link IncomingRequestAdmissionController}: each remote server gets a fair semaphore with
+ * as many permits as requests it may have in flight, and requests which can't get a permit right away wait for one,
+ * as long as not too many of them are already waiting.
+ *
+ * The limits can be configured in {@code xwiki.properties} using the {@value #MAX_IN_FLIGHT_PROPERTY} (a value of
+ * {@code 0} disables the limits), {@value #QUEUE_DEPTH_PROPERTY}, {@value #QUEUE_TIMEOUT_PROPERTY} and
+ * {@value #RETRY_AFTER_PROPERTY} properties.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultIncomingRequestAdmissionController implements IncomingRequestAdmissionController, Initializable
+{
+    private static final String MAX_IN_FLIGHT_PROPERTY = "remoteMatching.incoming.maxInFlightPerServer";
+
+    private static final String QUEUE_DEPTH_PROPERTY = "remoteMatching.incoming.queueDepthPerServer";
+
+    private static final String QUEUE_TIMEOUT_PROPERTY = "remoteMatching.incoming.queueTimeoutSeconds";
+
+    private static final String RETRY_AFTER_PROPERTY = "remoteMatching.incoming.retryAfterSeconds";
+
+    private static final int DEFAULT_MAX_IN_FLIGHT = 4;
+
+    private static final int DEFAULT_QUEUE_DEPTH = 8;
+
+    private static final int DEFAULT_QUEUE_TIMEOUT_SECONDS = 30;
+
+    private static final int DEFAULT_RETRY_AFTER_SECONDS = 60;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private final ConcurrentMap<String, ServerAdmission> servers = new ConcurrentHashMap<>();
+
+    private int maxInFlight;
+
+    private int queueDepth;
+
+    private long queueTimeoutMs;
+
+    private int retryAfterSeconds;
+
+    @Override
+    public void initialize()
+    {
+        this.maxInFlight = Math.max(0, this.configuration.getProperty(MAX_IN_FLIGHT_PROPERTY, DEFAULT_MAX_IN_FLIGHT));
+        this.queueDepth = Math.max(0, this.configuration.getProperty(QUEUE_DEPTH_PROPERTY, DEFAULT_QUEUE_DEPTH));
+        this.queueTimeoutMs = TimeUnit.SECONDS.toMillis(
+            Math.max(0, this.configuration.getProperty(QUEUE_TIMEOUT_PROPERTY, DEFAULT_QUEUE_TIMEOUT_SECONDS)));
+        this.retryAfterSeconds =
+            Math.max(1, this.configuration.getProperty(RETRY_AFTER_PROPERTY, DEFAULT_RETRY_AFTER_SECONDS));
+    }
+
+    @Override
+    public boolean admit(String remoteServerId)
+    {
+        ServerAdmission server = this.getServer(remoteServerId);
+        if (server.permits == null || server.permits.tryAcquire()) {
+            server.admitted(0);
+            return true;
+        }
+
+        if (server.queued.incrementAndGet() > this.queueDepth) {
+            server.queued.decrementAndGet();
+            return this.reject(remoteServerId, server, "the queue is full");
+        }
+        long queuedSince = System.nanoTime();
+        boolean acquired = false;
+        try {
+            acquired = server.permits.tryAcquire(this.queueTimeoutMs, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        } finally {
+            server.queued.decrementAndGet();
+        }
+        if (!acquired) {
+            return this.reject(remoteServerId, server, "timed out waiting in the queue");
+        }
+        server.admitted(System.nanoTime() - queuedSince);
+        return true;
+    }
+
+    @Override
+    public void release(String remoteServerId, long processingTimeMs)
+    {
+        ServerAdmission server = this.getServer(remoteServerId);
+        server.processed(processingTimeMs);
+        if (server.permits != null) {
+            server.permits.release();
+        }
+    }
+
+    @Override
+    public int getRetryAfterSeconds()
+    {
+        return this.retryAfterSeconds;
+    }
+
+    @Override
+    public Map<String, AdmissionStatistics> getStatistics()
+    {
+        Map<String, AdmissionStatistics> result = new HashMap<>();
+        for (Map.Entry<String, ServerAdmission> entry : this.servers.entrySet()) {
+            result.put(entry.getKey(), entry.getValue().getStatistics());
+        }
+        return Collections.unmodifiableMap(result);
+    }
+
+    private ServerAdmission getServer(String remoteServerId)
+    {
+        ServerAdmission server = this.servers.get(remoteServerId);
+        if (server == null) {
+            ServerAdmission created = new ServerAdmission(this.maxInFlight);
+            server = this.servers.putIfAbsent(remoteServerId, created);
+            if (server == null) {
+                server = created;
+            }
+        }
+        return server;
+    }
+
+    private boolean reject(String remoteServerId, ServerAdmission server, String reason)
+    {
+        server.rejected.incrementAndGet();
+        this.logger.warn("Rejected incoming request from [{}]: {} ({})", remoteServerId, reason,
+            server.getStatistics());
+        return false;
+    }
+
+    /** The admission state and counters of one remote server. */
+    private static final class ServerAdmission
+    {
+        /** {@code null} when the number of requests in flight is not limited. */
+        private final Semaphore permits;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicInteger queued = new AtomicInteger();
+
+        private final AtomicLong admitted = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        private final AtomicLong processed = new AtomicLong();
+
+        private final AtomicLong totalQueueTimeNs = new AtomicLong();
+
+        private final AtomicLong totalProcessingTimeMs = new AtomicLong();
+
+        ServerAdmission(int maxInFlight)
+        {
+            this.permits = (maxInFlight > 0) ? new Semaphore(maxInFlight, true) : null;
+        }
+
+        void admitted(long queueTimeNs)
+        {
+            this.inFlight.incrementAndGet();
+            this.admitted.incrementAndGet();
+            this.totalQueueTimeNs.addAndGet(queueTimeNs);
+        }
+
+        void processed(long processingTimeMs)
+        {
+            this.inFlight.decrementAndGet();
+            this.processed.incrementAndGet();
+            this.totalProcessingTimeMs.addAndGet(processingTimeMs);
+        }
+
+        AdmissionStatistics getStatistics()
+        {
+            long admittedCount = this.admitted.get();
+            long processedCount = this.processed.get();
+            return new AdmissionStatistics(this.inFlight.get(), this.queued.get(), admittedCount, this.rejected.get(),
+                (admittedCount == 0) ? 0 : TimeUnit.NANOSECONDS.toMillis(this.totalQueueTimeNs.get() / admittedCount),
+                (processedCount == 0) ? 0 : this.totalProcessingTimeMs.get() / processedCount);
+        }
+    }
+}
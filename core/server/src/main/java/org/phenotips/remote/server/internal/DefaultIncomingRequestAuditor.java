@@ -0,0 +1,230 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.internal;
+
+import org.phenotips.remote.api.IncomingMatchRequest;
+import org.phenotips.remote.hibernate.RemoteMatchingStorageManager;
+import org.phenotips.remote.server.IncomingRequestAuditor;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.slf4j.Logger;
+
+/**
+ * Default implementation of {@link IncomingRequestAuditor}: requests are put in a bounded in-memory queue, which a
+ * background thread drains, storing the queued requests in batches. When the queue is full, callers wait a little for
+ * room in the queue, and if there is still none, store their request themselves. Requests still queued when the
+ * component is disposed are stored before shutting down, and requests audited after that are stored right away.
+ *
+ * The size of the queue can be configured in {@code xwiki.properties} using the {@value #QUEUE_SIZE_PROPERTY}
+ * property.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultIncomingRequestAuditor implements IncomingRequestAuditor, Initializable, Disposable
+{
+    private static final String QUEUE_SIZE_PROPERTY = "remoteMatching.audit.queueSize";
+
+    private static final int DEFAULT_QUEUE_SIZE = 1000;
+
+    /** Maximum number of requests stored in one transaction. */
+    private static final int MAX_BATCH_SIZE = 100;
+
+    /** How long callers wait for room in a full queue before storing their request themselves. */
+    private static final long ENQUEUE_TIMEOUT_MS = 100;
+
+    /** How often the writer checks whether it should stop, when there is nothing to store. */
+    private static final long POLL_TIMEOUT_MS = 1000;
+
+    private static final long SHUTDOWN_TIMEOUT_MS = 10000;
+
+    @Inject
+    private Logger logger;
+
+    @Inject
+    private RemoteMatchingStorageManager requestStorageManager;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    private BlockingQueue<IncomingMatchRequest> queue;
+
+    private Thread writer;
+
+    /** Guarded by {@link #shutdownLock}: requests are only queued while the writer is running. */
+    private boolean running;
+
+    /** Held for reading while queueing a request, and for writing while stopping the writer. */
+    private final ReadWriteLock shutdownLock = new ReentrantReadWriteLock();
+
+    @Override
+    public void initialize()
+    {
+        int queueSize = this.configuration.getProperty(QUEUE_SIZE_PROPERTY, DEFAULT_QUEUE_SIZE);
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueSize));
+        this.running = true;
+        this.writer = new Thread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeQueuedRequests();
+            }
+        }, "remote-matching-audit-writer");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void dispose()
+    {
+        // waits for the requests being queued, after which no more requests are queued
+        this.shutdownLock.writeLock().lock();
+        try {
+            this.running = false;
+        } finally {
+            this.shutdownLock.writeLock().unlock();
+        }
+        // not interrupting the writer, which could abort a database write
+        try {
+            this.writer.join(SHUTDOWN_TIMEOUT_MS);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        // the writer already stored the remaining requests, unless it did not stop in time
+        this.saveRemainingRequests();
+    }
+
+    @Override
+    public void audit(IncomingMatchRequest request)
+    {
+        if (request == null) {
+            return;
+        }
+        boolean running;
+        boolean queued = false;
+        this.shutdownLock.readLock().lock();
+        try {
+            running = this.running;
+            if (running) {
+                queued = this.queue.offer(request, ENQUEUE_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            running = true;
+        } finally {
+            this.shutdownLock.readLock().unlock();
+        }
+        if (!queued) {
+            if (running) {
+                this.logger.warn("Audit queue is full, storing incoming request from [{}] synchronously",
+                    request.getRemoteServerId());
+            }
+            this.save(request);
+        }
+    }
+
+    private void writeQueuedRequests()
+    {
+        List<IncomingMatchRequest> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (this.isRunning()) {
+            try {
+                IncomingMatchRequest first = this.queue.poll(POLL_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                this.queue.drainTo(batch, MAX_BATCH_SIZE - 1);
+                this.saveBatch(batch);
+                batch.clear();
+            } catch (InterruptedException ex) {
+                break;
+            } catch (Exception ex) {
+                // never let the writer thread die
+                this.logger.error("Unexpected error storing incoming requests: [{}]", ex.getMessage(), ex);
+                batch.clear();
+            }
+        }
+        // store whatever is left before shutting down
+        this.saveRemainingRequests();
+    }
+
+    private boolean isRunning()
+    {
+        this.shutdownLock.readLock().lock();
+        try {
+            return this.running;
+        } finally {
+            this.shutdownLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Stores the queued requests; called by both the writer and {@link #dispose()}, which never take the same
+     * requests from the queue.
+     */
+    private void saveRemainingRequests()
+    {
+        List<IncomingMatchRequest> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        while (this.queue.drainTo(batch, MAX_BATCH_SIZE) > 0) {
+            this.saveBatch(batch);
+            batch.clear();
+        }
+    }
+
+    private void saveBatch(List<IncomingMatchRequest> batch)
+    {
+        try {
+            this.requestStorageManager.saveIncomingRequests(batch);
+        } catch (Exception ex) {
+            // one bad request must not prevent storing the others
+            this.logger.warn("Failed to store a batch of [{}] incoming requests, storing them one by one",
+                batch.size());
+            for (IncomingMatchRequest request : batch) {
+                this.save(request);
+            }
+        }
+    }
+
+    private void save(IncomingMatchRequest request)
+    {
+        try {
+            this.requestStorageManager.saveIncomingRequest(request);
+        } catch (Exception ex) {
+            // already logged by the storage manager
+        }
+    }
+}
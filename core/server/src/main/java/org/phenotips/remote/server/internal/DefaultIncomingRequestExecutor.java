@@ -0,0 +1,101 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.internal;
+
+import org.phenotips.remote.common.ExecutionContextPropagator;
+import org.phenotips.remote.server.IncomingRequestExecutor;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.component.phase.Disposable;
+import org.xwiki.component.phase.Initializable;
+import org.xwiki.configuration.ConfigurationSource;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.commons.lang3.concurrent.BasicThreadFactory;
+
+/**
+ * Default implementation of {@link IncomingRequestExecutor}, using a fixed size thread pool. The queue of the pool is
+ * not bounded, since the {@link org.phenotips.remote.server.IncomingRequestAdmissionController} already bounds the
+ * number of requests waiting for each remote server.
+ *
+ * The number of matching threads and the timeout can be configured in {@code xwiki.properties} using the
+ * {@value #THREADS_PROPERTY} and {@value #TIMEOUT_PROPERTY} properties.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultIncomingRequestExecutor implements IncomingRequestExecutor, Initializable, Disposable
+{
+    private static final String THREADS_PROPERTY = "remoteMatching.incoming.matchingThreads";
+
+    private static final String TIMEOUT_PROPERTY = "remoteMatching.incoming.timeoutSeconds";
+
+    private static final int DEFAULT_TIMEOUT_SECONDS = 120;
+
+    @Inject
+    @Named("xwikiproperties")
+    private ConfigurationSource configuration;
+
+    @Inject
+    private ExecutionContextPropagator contextPropagator;
+
+    private ThreadPoolExecutor executor;
+
+    private long timeoutMs;
+
+    @Override
+    public void initialize()
+    {
+        int threads = Math.max(1,
+            this.configuration.getProperty(THREADS_PROPERTY, Runtime.getRuntime().availableProcessors()));
+        this.executor = new ThreadPoolExecutor(threads, threads, 60L, TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new BasicThreadFactory.Builder().namingPattern("remote-matching-incoming-%d").daemon(true).build());
+        this.executor.allowCoreThreadTimeOut(true);
+        this.timeoutMs = TimeUnit.SECONDS.toMillis(
+            Math.max(1, this.configuration.getProperty(TIMEOUT_PROPERTY, DEFAULT_TIMEOUT_SECONDS)));
+    }
+
+    @Override
+    public void dispose()
+    {
+        this.executor.shutdownNow();
+    }
+
+    @Override
+    public <T> Future<T> submit(Callable<T> task)
+    {
+        return this.executor.submit(this.contextPropagator.wrap(task));
+    }
+
+    @Override
+    public long getTimeoutMs()
+    {
+        return this.timeoutMs;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.internal;
+
+import org.phenotips.remote.api.ApiConfiguration;
+import org.phenotips.remote.common.internal.ExpiringCache;
+
+import org.xwiki.component.annotation.Component;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.inject.Singleton;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Default {@link IncomingResponseCache}: replies are kept for a few minutes, which covers immediate retries and a
+ * remote server re-matching many patients in a row, and are cached as strings so that callers can't modify them.
+ *
+ * Each key includes the number of invalidations so far, so that a reply computed while a local patient was being
+ * modified is stored under a key which is never looked up again.
+ *
+ * @version $Id$
+ */
+@Component
+@Singleton
+public class DefaultIncomingResponseCache implements IncomingResponseCache
+{
+    private static final int MAX_RESPONSES = 100;
+
+    private static final long TIME_TO_LIVE_MS = TimeUnit.MINUTES.toMillis(5);
+
+    private static final char KEY_SEPARATOR = ':';
+
+    private final ExpiringCache<String, String> cache = new ExpiringCache<>(MAX_RESPONSES, TIME_TO_LIVE_MS);
+
+    private final AtomicLong generation = new AtomicLong();
+
+    @Override
+    public String getKey(String remoteServerId, String apiVersion, JSONObject requestJSON)
+    {
+        JSONObject patient = requestJSON.optJSONObject(ApiConfiguration.JSON_PATIENT);
+        if (patient == null) {
+            return null;
+        }
+        StringBuilder canonicalPatient = new StringBuilder();
+        canonicalize(patient, canonicalPatient);
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-256")
+                .digest(canonicalPatient.toString().getBytes(StandardCharsets.UTF_8));
+            return String.valueOf(this.generation.get()) + KEY_SEPARATOR + apiVersion + KEY_SEPARATOR
+                + Base64.getEncoder().encodeToString(hash) + KEY_SEPARATOR + remoteServerId;
+        } catch (NoSuchAlgorithmException ex) {
+            // every Java platform supports SHA-256
+            return null;
+        }
+    }
+
+    @Override
+    public JSONObject get(String key)
+    {
+        if (key == null) {
+            return null;
+        }
+        String response = this.cache.get(key);
+        return (response == null) ? null : new JSONObject(response);
+    }
+
+    @Override
+    public void put(String key, JSONObject response)
+    {
+        if (key != null && response != null) {
+            this.cache.put(key, response.toString());
+        }
+    }
+
+    @Override
+    public void invalidateAll()
+    {
+        this.generation.incrementAndGet();
+        this.cache.invalidateAll();
+    }
+
+    /**
+     * Writes a JSON value with the properties of all objects sorted by name, so that equivalent values give the same
+     * text; the order of array items is kept, since it may be meaningful.
+     */
+    private static void canonicalize(Object value, StringBuilder out)
+    {
+        if (value instanceof JSONObject) {
+            JSONObject object = (JSONObject) value;
+            SortedSet<String> names = new TreeSet<>();
+            Iterator<String> keys = object.keys();
+            while (keys.hasNext()) {
+                names.add(keys.next());
+            }
+            out.append('{');
+            for (String name : names) {
+                if (out.charAt(out.length() - 1) != '{') {
+                    out.append(',');
+                }
+                out.append(JSONObject.quote(name)).append(':');
+                canonicalize(object.get(name), out);
+            }
+            out.append('}');
+        } else if (value instanceof JSONArray) {
+            JSONArray array = (JSONArray) value;
+            out.append('[');
+            for (int i = 0; i < array.length(); ++i) {
+                if (i > 0) {
+                    out.append(',');
+                }
+                canonicalize(array.get(i), out);
+            }
+            out.append(']');
+        } else {
+            out.append(JSONObject.valueToString(value));
+        }
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.internal;
+
+import org.xwiki.component.annotation.Role;
+
+import org.json.JSONObject;
+
+/**
+ * Keeps the replies recently sent to incoming match requests, so that a remote server sending the same query again
+ * (retries, periodic re-matching) gets the same reply without searching the local patients again. Replies depend on
+ * all the local patients, so they are all forgotten whenever any local patient changes.
+ *
+ * @version $Id$
+ */
+@Role
+public interface IncomingResponseCache
+{
+    /**
+     * Computes the cache key of a request: the server which sent it, the API version, and a hash of the queried
+     * patient, independent of the order of its properties.
+     *
+     * @param remoteServerId the identifier of the remote server which sent the request
+     * @param apiVersion the API version of the request
+     * @param requestJSON the request
+     * @return the cache key, or {@code null} if the request can't be cached
+     */
+    String getKey(String remoteServerId, String apiVersion, JSONObject requestJSON);
+
+    /**
+     * @param key a cache key, may be {@code null}
+     * @return a copy of the cached reply, or {@code null} if there is none
+     */
+    JSONObject get(String key);
+
+    /**
+     * Caches a reply. A reply computed before the last {@link #invalidateAll() invalidation} is never returned, even if
+     * stored afterwards.
+     *
+     * @param key the cache key obtained before computing the reply, may be {@code null}
+     * @param response the reply
+     */
+    void put(String key, JSONObject response);
+
+    /** Forgets all the cached replies, which must be done whenever a local patient is modified or deleted. */
+    void invalidateAll();
+}
@@ -22,8 +22,8 @@
 import org.phenotips.remote.api.ApiDataConverter;
 import org.phenotips.remote.api.ApiViolationException;
 import org.phenotips.remote.api.IncomingMatchRequest;
-import org.phenotips.remote.hibernate.RemoteMatchingStorageManager;
 import org.phenotips.remote.hibernate.internal.DefaultIncomingMatchRequest;
+import org.phenotips.remote.server.IncomingRequestAuditor;
 import org.phenotips.remote.server.SearchRequestProcessor;
 import org.phenotips.similarity.SimilarPatientsFinder;
 
@@ -56,11 +56,14 @@ public class IncomingSearchRequestProcessor implements SearchRequestProcessor
     private SimilarPatientsFinder patientsFinder;
 
     @Inject
-    private RemoteMatchingStorageManager requestStorageManager;
+    private IncomingRequestAuditor auditor;
 
     @Inject
     private MatchingNotificationManager notificationManager;
 
+    @Inject
+    private IncomingResponseCache responseCache;
+
     @Override
     public JSONObject processHTTPSearchRequest(ApiDataConverter apiVersionSpecificConverter, String stringJson,
         String remoteServerId, HttpServletRequest httpRequest)
@@ -74,23 +77,32 @@ public JSONObject processHTTPSearchRequest(ApiDataConverter apiVersionSpecificCo
             IncomingMatchRequest request =
                 apiVersionSpecificConverter.getIncomingJSONParser().parseIncomingRequest(json, remoteServerId);
 
-            List<PatientSimilarityView> matches =
+            // the same query sent again shortly after gets the same reply, whose matches were already saved
+            String cacheKey =
+                this.responseCache.getKey(remoteServerId, apiVersionSpecificConverter.getApiVersion(), json);
+            JSONObject responseJSON = this.responseCache.get(cacheKey);
+            if (responseJSON == null) {
+                List<PatientSimilarityView> matches =
                     this.patientsFinder.findSimilarPatients(request.getModelPatient(), REMOTE_MATCHING_CONSENT_ID);
 
-            List<PatientSimilarityView> filteredMatches = filterMatches(matches);
+                List<PatientSimilarityView> filteredMatches = filterMatches(matches);
 
-            // save into matching notification database (unless request is for a test patient)
-            if (!request.isTestRequest()) {
-                this.notificationManager.saveIncomingMatches(filteredMatches, request.getModelPatient().getId(),
-                    remoteServerId);
-            }
+                // save into matching notification database (unless request is for a test patient)
+                if (!request.isTestRequest()) {
+                    this.notificationManager.saveIncomingMatches(filteredMatches, request.getModelPatient().getId(),
+                        remoteServerId);
+                }
 
-            JSONObject responseJSON = apiVersionSpecificConverter.generateServerResponse(request, filteredMatches);
+                responseJSON = apiVersionSpecificConverter.generateServerResponse(request, filteredMatches);
+                this.responseCache.put(cacheKey, responseJSON);
+            } else {
+                this.logger.debug("Replying to a repeated request from [{}] with the cached reply", remoteServerId);
+            }
 
             request.addResponse(responseJSON);
 
-            // save for audit purposes only
-            this.requestStorageManager.saveIncomingRequest(request);
+            // save for audit purposes only; this happens in the background, not to delay the reply
+            this.auditor.audit(request);
 
             requestIncomplete = false;
             return responseJSON;
@@ -116,7 +128,7 @@ public void saveUnprocessedRequest(String requestString, String remoteServerId,
         IncomingMatchRequest request =
             new DefaultIncomingMatchRequest(remoteServerId, apiVersion, requestString, null, false);
 
-        this.requestStorageManager.saveIncomingRequest(request);
+        this.auditor.audit(request);
     }
 
     private List<PatientSimilarityView> filterMatches(List<PatientSimilarityView> matches)
@@ -0,0 +1,80 @@
+/*
+ * See the NOTICE file distributed with this work for additional
+ * information regarding copyright ownership.
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Affero General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU Affero General Public License for more details.
+ *
+ * You should have received a copy of the GNU Affero General Public License
+ * along with this program.  If not, see http://www.gnu.org/licenses/
+ */
+package org.phenotips.remote.server.script;
+
+import org.phenotips.remote.server.AdmissionStatistics;
+import org.phenotips.remote.server.IncomingRequestAdmissionController;
+
+import org.xwiki.component.annotation.Component;
+import org.xwiki.script.service.ScriptService;
+import org.xwiki.security.authorization.ContextualAuthorizationManager;
+import org.xwiki.security.authorization.Right;
+import org.xwiki.stability.Unstable;
+
+import java.util.Map;
+
+import javax.inject.Inject;
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.json.JSONObject;
+
+/**
+ * Allows administrators to monitor how the incoming match requests of each remote server are admitted, e.g. to tune the
+ * admission limits.
+ *
+ * @version $Id$
+ */
+@Unstable
+@Component
+@Named("incomingMatchRequests")
+@Singleton
+public class IncomingRequestsScriptService implements ScriptService
+{
+    @Inject
+    private IncomingRequestAdmissionController admissionController;
+
+    @Inject
+    private ContextualAuthorizationManager authorizationManager;
+
+    /**
+     * @return the admission statistics of each remote server which sent requests since the last startup, e.g.
+     *         <code>{"server1": {"inFlight": 1, "queued": 0, "admitted": 10, "rejected": 2,
+     *         "averageQueueTimeMs": 15, "averageProcessingTimeMs": 800}, ...}</code>, or {@code null} if the current
+     *         user is not an administrator
+     */
+    public JSONObject getStatistics()
+    {
+        if (!this.authorizationManager.hasAccess(Right.ADMIN)) {
+            return null;
+        }
+        JSONObject result = new JSONObject();
+        for (Map.Entry<String, AdmissionStatistics> server : this.admissionController.getStatistics().entrySet()) {
+            AdmissionStatistics statistics = server.getValue();
+            JSONObject serverResult = new JSONObject();
+            serverResult.put("inFlight", statistics.getInFlight());
+            serverResult.put("queued", statistics.getQueued());
+            serverResult.put("admitted", statistics.getAdmitted());
+            serverResult.put("rejected", statistics.getRejected());
+            serverResult.put("averageQueueTimeMs", statistics.getAverageQueueTimeMs());
+            serverResult.put("averageProcessingTimeMs", statistics.getAverageProcessingTimeMs());
+            result.put(server.getKey(), serverResult);
+        }
+        return result;
+    }
+}